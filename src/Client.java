@@ -6,11 +6,45 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
 
 public class Client {
     private final int a;
@@ -20,6 +54,62 @@ public class Client {
     private PrintWriter e;
     private int f;
     private boolean g;
+    // Keep-alive connections to the Dstores, open from connect() to disconnect()
+    private DstoreConnectionPool pool;
+    // Request-tagged connection to the Controller used by the *Async methods, opened on first use
+    private ControllerPipeline pipeline;
+    // Runs replica uploads and pipelined requests' Dstore transfers; daemon threads so an idle pool never keeps the JVM alive
+    private static final ExecutorService TRANSFERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "client-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // -Dclient.store=chain uploads once and lets the Dstores forward the file along the STORE_TO list
+    private static final boolean CHAIN_STORE = System.getProperty("client.store", "fanout").equals("chain");
+    // -Dclient.dedup=true sends the SHA-256 of each upload with its STORE, so a Dstore that already
+    // holds the same bytes under another name links to them instead of receiving them again
+    private static final boolean DEDUP = Boolean.getBoolean("client.dedup");
+    // -Dclient.compress=true deflates uploads once for all replicas, for Dstores that take DEFLATE
+    private static final boolean COMPRESS = Boolean.getBoolean("client.compress");
+    // Files of an MSTORE/MLOAD transferred at once
+    private static final int BATCH_PARALLELISM = Integer.getInteger("client.batch.parallelism", 16);
+    // Size of the byte ranges a striped load fetches from the replicas
+    private static final int STRIPE_SIZE = Integer.getInteger("client.stripe.size", 4 * 1024 * 1024);
+    // Blocks of a storeChunked file uploading at once
+    private static final int BLOCK_PARALLELISM = Integer.getInteger("client.block.parallelism", 4);
+    // -Dclient.metadata.cache=true loads through leases from the Controller (LEASE), so repeat loads
+    // of a file within its lease go straight to a Dstore
+    private static final boolean METADATA_CACHE = Boolean.getBoolean("client.metadata.cache");
+    // -Dclient.latency.feedback=true tells the Controller how long loads from each Dstore took, for
+    // its replica selector, as latency=<port>:<micros>,... on the next LOAD, RELOAD or LEASE
+    private static final boolean LATENCY_FEEDBACK = Boolean.getBoolean("client.latency.feedback");
+    private final Queue<String> latencySamples = new ConcurrentLinkedQueue<>();
+    // -Dclient.hedge=true starts a second LOAD_DATA on another replica when the first has not
+    // delivered within the client.hedge.percentile (default 95th) of recent LOAD_DATA times per MiB,
+    // scaled by the size of the load.
+    // Each load hedges at most client.hedge.max times, and no more than client.hedge.budget percent
+    // of loads hedge overall
+    private static final boolean HEDGE = Boolean.getBoolean("client.hedge");
+    private static final int HEDGE_PERCENTILE = Integer.getInteger("client.hedge.percentile", 95);
+    private static final int HEDGE_MAX = Integer.getInteger("client.hedge.max", 1);
+    private static final int HEDGE_BUDGET = Integer.getInteger("client.hedge.budget", 10);
+    // The most recent LOAD_DATA times, in nanoseconds per MiB with smaller loads counted as one, as a ring
+    private final long[] deliveryNanos = new long[256];
+    private int deliveryCount;
+    // Hedges this client may still send: each load earns HEDGE_BUDGET / 100 of one
+    private double hedgeTokens;
+    // Leases by filename, dropped when the Controller sends REVOKE or no replica in them delivers
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    // -Dclient.cache.bytes=<n> keeps up to n bytes of loaded files in memory, checked against the
+    // version in each file's lease; past that, files spill to -Dclient.cache.dir, up to
+    // -Dclient.cache.disk.bytes. -Dclient.cache.policy=lfu evicts the least often used file rather
+    // than the least recently used one
+    private final ContentCache cache = Long.getLong("client.cache.bytes", 0L) > 0L
+            ? new ContentCache(Long.getLong("client.cache.bytes", 0L),
+                    System.getProperty("client.cache.dir") != null ? Path.of(System.getProperty("client.cache.dir")) : null,
+                    Long.getLong("client.cache.disk.bytes", 1L << 30),
+                    ContentCache.Policy.valueOf(System.getProperty("client.cache.policy", "lru").toUpperCase()))
+            : null;
 
     public Client(int cport, int timeout, Logger$LoggingType loggintType) {
         this.a = cport;
@@ -40,6 +130,8 @@ public class Client {
             this.e = new PrintWriter(this.c.getOutputStream(), true);
             this.d = new BufferedReader(new InputStreamReader(this.c.getInputStream()));
             this.g = true;
+            this.pool = new DstoreConnectionPool(this.b, Long.getLong("client.pool.idleMillis", 30000),
+                    Integer.getInteger("client.pool.maxIdle", 8));
         } catch (Exception var2) {
             ClientLogger.getInstance().errorConnecting(this.a);
             this.g = false;
@@ -52,6 +144,22 @@ public class Client {
             this.c.close();
         }
 
+        if (this.pool != null) {
+            this.pool.close();
+            this.pool = null;
+        }
+
+        synchronized (this) {
+            if (this.pipeline != null) {
+                this.pipeline.close();
+                this.pipeline = null;
+            }
+        }
+
+        if (this.cache != null) {
+            this.cache.clear();
+        }
+
         this.g = false;
     }
 
@@ -150,71 +258,10 @@ public class Client {
             ClientLogger.getInstance().messageReceived(this.c.getPort(), var4);
             int[] var5 = a(filename, var4);
             ClientLogger.getInstance().dstoresWhereToStoreTo(filename, var5);
-            int[] var8 = var5;
-            int var7 = var5.length;
-
-            for(int var6 = 0; var6 < var7; ++var6) {
-                int var24 = var8[var6];
-                Socket var9 = null;
-                boolean var18 = false;
-
-                label150: {
-                    try {
-                        var18 = true;
-                        (var9 = new Socket(InetAddress.getLoopbackAddress(), var24)).setSoTimeout(this.b);
-                        ClientLogger.getInstance().connectionEstablished(var9.getPort());
-                        OutputStream var10 = var9.getOutputStream();
-                        PrintWriter var11 = new PrintWriter(var10, true);
-                        BufferedReader var12 = new BufferedReader(new InputStreamReader(var9.getInputStream()));
-                        var11.println(var3);
-                        ClientLogger.getInstance().messageSent(var9.getPort(), var3);
-                        ClientLogger.getInstance().storeToDstoreStarted(filename, var24);
-
-                        String var28;
-                        try {
-                            var28 = var12.readLine();
-                        } catch (SocketTimeoutException var20) {
-                            ClientLogger.getInstance().timeoutExpiredWhileReading(var9.getPort());
-                            throw var20;
-                        }
-
-                        ClientLogger.getInstance().messageReceived(var9.getPort(), var28);
-                        String var27;
-                        if (var28 == null) {
-                            var27 = "Connection closed by Dstore ".concat(String.valueOf(var24));
-                            ClientLogger.getInstance().error(var27);
-                            throw new IOException(var27);
-                        }
-
-                        if (!var28.trim().equals("ACK")) {
-                            var27 = "Unexpected message received from Dstore (ACK was expected): ".concat(String.valueOf(var28));
-                            ClientLogger.getInstance().error(var27);
-                            throw new IOException(var27);
-                        }
-
-                        ClientLogger.getInstance().ackFromDstore(filename, var24);
-                        var10.write(data);
-                        ClientLogger.getInstance().storeToDstoreCompleted(filename, var24);
-                        var18 = false;
-                        break label150;
-                    } catch (Exception var22) {
-                        ClientLogger.getInstance().storeToDstoreFailed(filename, var24);
-                        var18 = false;
-                    } finally {
-                        if (var18) {
-                            if (var9 != null) {
-                                var9.close();
-                            }
-
-                        }
-                    }
-
-                    if (var9 == null) {
-                        continue;
-                    }
-                }
-
-                var9.close();
+            if (CHAIN_STORE) {
+                this.storeChain(filename, data, var3, var5);
+            } else {
+                this.storeFanOut(filename, data, var3, var5);
             }
 
             String var25;
@@ -241,6 +288,1589 @@ public class Client {
         }
     }
 
+    /**
+     * Uploads to every Dstore of STORE_TO at once, all replicas reading the same array, so the
+     * store takes as long as the slowest replica rather than the sum of them. A failed replica is
+     * logged on its own; the Controller decides whether the store as a whole succeeded.
+     */
+    private void storeFanOut(String filename, byte[] data, String message, int[] ports) throws IOException {
+        this.storeFanOut(filename, out -> out.write(data), compress(data), withChecksum(withContentHash(message, data), data), ports);
+    }
+
+    private void storeFanOut(String filename, Body data, byte[] compressed, String message, int[] ports) throws IOException {
+        if (ports.length == 1) {
+            this.storeToDstore(filename, data, compressed, message, ports[0]);
+            return;
+        }
+
+        List<Future<?>> uploads = new ArrayList<>();
+        for (int port : ports) {
+            uploads.add(TRANSFERS.submit(() -> this.storeToDstore(filename, data, compressed, message, port)));
+        }
+        for (Future<?> upload : uploads) {
+            try {
+                upload.get();
+            } catch (ExecutionException e) {
+                // storeToDstore reports its own failures
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while storing " + filename);
+            }
+        }
+    }
+
+    /**
+     * Uploads to one Dstore, sending {@code compressed} instead of the bytes themselves when given
+     * and the Dstore takes DEFLATE.
+     */
+    private void storeToDstore(String filename, Body data, byte[] compressed, String message, int port) {
+        DstoreConnectionPool.Connection connection = null;
+        try {
+            connection = this.pool.borrow(port);
+            boolean deflate = compressed != null && connection.deflate;
+            String request = deflate ? message + " deflate=" + compressed.length : message;
+            connection.sendLine(request);
+            ClientLogger.getInstance().messageSent(port, request);
+            ClientLogger.getInstance().storeToDstoreStarted(filename, port);
+            if (this.awaitAck(connection, filename)) {
+                if (deflate) {
+                    connection.out.write(compressed);
+                } else {
+                    data.writeTo(connection.out);
+                }
+                connection.out.flush();
+            }
+            ClientLogger.getInstance().storeToDstoreCompleted(filename, port);
+            this.pool.release(connection);
+        } catch (IOException e) {
+            if (connection != null) {
+                this.pool.discard(connection);
+            }
+            ClientLogger.getInstance().storeToDstoreFailed(filename, port);
+        }
+    }
+
+    /**
+     * Waits for a Dstore to take a STORE. Returns false for ACK_LINKED: the Dstore already holds
+     * the content and wants no bytes.
+     */
+    private boolean awaitAck(DstoreConnectionPool.Connection connection, String filename) throws IOException {
+        String ack;
+        try {
+            ack = connection.readLine();
+        } catch (SocketTimeoutException e) {
+            ClientLogger.getInstance().timeoutExpiredWhileReading(connection.port);
+            throw e;
+        }
+        ClientLogger.getInstance().messageReceived(connection.port, ack);
+        if (ack == null) {
+            String error = "Connection closed by Dstore " + connection.port;
+            ClientLogger.getInstance().error(error);
+            throw new IOException(error);
+        }
+        if (!ack.trim().equals("ACK") && !ack.trim().equals("ACK_LINKED")) {
+            String error = "Unexpected message received from Dstore (ACK was expected): " + ack;
+            ClientLogger.getInstance().error(error);
+            throw new IOException(error);
+        }
+        ClientLogger.getInstance().ackFromDstore(filename, connection.port);
+        return ack.trim().equals("ACK");
+    }
+
+    // Adds sha256=<hex> to a Dstore STORE line when client.dedup is on
+    private static String withContentHash(String message, byte[] data) {
+        if (!DEDUP) {
+            return message;
+        }
+        MessageDigest digest = sha256();
+        digest.update(data);
+        return message + " sha256=" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    // As withChecksum(withContentHash(...)) for length bytes of a file from offset, read once
+    private static String withChecksums(String message, FileChannel channel, long offset, long length) throws IOException {
+        MessageDigest digest = DEDUP ? sha256() : null;
+        CRC32C checksum = new CRC32C();
+        readRange(channel, offset, length, buffer -> {
+            if (digest != null) {
+                digest.update(buffer.duplicate());
+            }
+            checksum.update(buffer);
+        });
+        return (digest != null ? message + " sha256=" + HexFormat.of().formatHex(digest.digest()) : message)
+                + " crc32c=" + Long.toHexString(checksum.getValue());
+    }
+
+    // Adds the CRC32C of a shard, length bytes of a file from offset then padding zero bytes, to a Dstore STORE line
+    private static String withChecksum(String message, FileChannel channel, long offset, long length, long padding) throws IOException {
+        CRC32C checksum = new CRC32C();
+        readRange(channel, offset, length, checksum::update);
+        byte[] zeros = new byte[(int) Math.min(64 * 1024, Math.max(1L, padding))];
+        for (long left = padding; left > 0; left -= zeros.length) {
+            checksum.update(zeros, 0, (int) Math.min(zeros.length, left));
+        }
+        return message + " crc32c=" + Long.toHexString(checksum.getValue());
+    }
+
+    private static void readRange(FileChannel channel, long offset, long length, Consumer<ByteBuffer> sink) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(64 * 1024, Math.max(1, length)));
+        for (long position = offset; position < offset + length; ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), offset + length - position));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("File ended before " + (offset + length) + " bytes");
+            }
+            buffer.flip();
+            sink.accept(buffer);
+            position += n;
+        }
+    }
+
+    // Adds the CRC32C of the content to a Dstore STORE line, for the Dstore to check what arrives
+    private static String withChecksum(String message, byte[] data) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(data);
+        return message + " crc32c=" + Long.toHexString(checksum.getValue());
+    }
+
+    // The DeflateBlocks of an upload when client.compress is on and they save at least an eighth
+    private static byte[] compress(byte[] data) {
+        if (!COMPRESS) {
+            return null;
+        }
+        byte[] compressed = DeflateBlocks.compress(data);
+        return compressed.length <= data.length - data.length / 8 ? compressed : null;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Chain replication: uploads once, to the first Dstore of STORE_TO, with the rest of the list
+     * appended to the STORE line. Each Dstore forwards the bytes to the next one as it writes them,
+     * so the client sends every byte once whatever the replication factor.
+     */
+    private void storeChain(String filename, byte[] data, String message, int[] ports) {
+        this.storeChain(filename, out -> out.write(data), compress(data), withChecksum(withContentHash(message, data), data), ports);
+    }
+
+    private void storeChain(String filename, Body data, byte[] compressed, String message, int[] ports) {
+        int head = ports[0];
+        DstoreConnectionPool.Connection connection = null;
+        try {
+            connection = this.pool.borrow(head);
+            // The chain passes the compressed bytes on as they are, so the head decides for all of it
+            boolean deflate = compressed != null && connection.deflate;
+            StringBuilder chainMessage = new StringBuilder(message);
+            if (deflate) {
+                chainMessage.append(" deflate=").append(compressed.length);
+            }
+            for (int i = 1; i < ports.length; i++) {
+                chainMessage.append(' ').append(ports[i]);
+            }
+            connection.sendLine(chainMessage.toString());
+            ClientLogger.getInstance().messageSent(head, chainMessage.toString());
+            ClientLogger.getInstance().storeToDstoreStarted(filename, head);
+            if (this.awaitAck(connection, filename)) {
+                if (deflate) {
+                    connection.out.write(compressed);
+                } else {
+                    data.writeTo(connection.out);
+                }
+                connection.out.flush();
+            }
+            ClientLogger.getInstance().storeToDstoreCompleted(filename, head);
+            this.pool.release(connection);
+        } catch (IOException e) {
+            // As with a failed fan-out upload, the Controller reports the outcome
+            if (connection != null) {
+                this.pool.discard(connection);
+            }
+            ClientLogger.getInstance().storeToDstoreFailed(filename, head);
+        }
+    }
+
+    // The bytes of one upload, written once per connection they go to
+    private interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private synchronized ControllerPipeline pipeline() throws IOException {
+        if (!this.g) {
+            throw new IOException("Client not connected");
+        }
+        if (this.pipeline == null) {
+            this.pipeline = new ControllerPipeline(this.a, this.b, this::onNotice);
+        }
+        return this.pipeline;
+    }
+
+    private void recordLatency(int port, long startedNanos) {
+        if (LATENCY_FEEDBACK && this.latencySamples.size() < 16) {
+            this.latencySamples.add(port + ":" + (System.nanoTime() - startedNanos) / 1000L);
+        }
+    }
+
+    // " latency=<port>:<micros>,..." with the load times gathered since the last request, or ""
+    private String latencyOption() {
+        StringBuilder option = new StringBuilder();
+        String sample;
+        while ((sample = this.latencySamples.poll()) != null) {
+            option.append(option.length() == 0 ? " latency=" : ",").append(sample);
+        }
+        return option.toString();
+    }
+
+    // Untagged lines from the Controller; null when the pipeline has closed and no REVOKE can arrive any more
+    private void onNotice(String notice) {
+        if (notice == null) {
+            this.leases.clear();
+        } else if (notice.startsWith("REVOKE ")) {
+            this.leases.remove(notice.substring(7));
+        } else if (notice.startsWith("INVALIDATE ")) {
+            this.leases.remove(notice.substring(11));
+            if (this.cache != null) {
+                this.cache.invalidate(notice.substring(11));
+            }
+        } else {
+            ClientLogger.getInstance().error("Unexpected message received on pipelined connection: " + notice);
+        }
+    }
+
+    /**
+     * {@code LEASE <file>} over the pipeline. The lease is recorded on the reader thread, so any
+     * REVOKE for it that follows is applied after it, and it is timed from before the request went
+     * out, so it never outlives the Controller's record of it.
+     */
+    private CompletableFuture<Lease> leaseAsync(String filename) throws IOException {
+        CompletableFuture<Lease> result = new CompletableFuture<>();
+        long requested = System.nanoTime();
+        this.pipeline().send("LEASE " + filename + this.latencyOption(), (id, reply) -> {
+            String[] parts = reply.trim().split(" ");
+            if (parts[0].equals("ERROR_FILE_DOES_NOT_EXIST")) {
+                ClientLogger.getInstance().fileToLoadDoesNotExist(filename);
+                throw new FileDoesNotExistException(filename);
+            } else if (!parts[0].equals("LEASE") || parts.length < 6) {
+                throw new IOException("Unexpected message received (expected message: LEASE): " + reply);
+            }
+            int[] ports = Arrays.stream(parts, 5, parts.length).mapToInt(Integer::parseInt).toArray();
+            Lease lease = new Lease(Long.parseLong(parts[2]), Long.parseLong(parts[4]), ports, requested + Long.parseLong(parts[3]) * 1000000L);
+            if (lease.valid()) {
+                this.leases.put(filename, lease);
+            }
+            result.complete(lease);
+            return true;
+        }, result);
+        return result;
+    }
+
+    // The file's lease, taking one out if there is none or it has run out
+    private Lease lease(String filename) throws IOException {
+        Lease lease = this.leases.get(filename);
+        if (lease != null && lease.valid()) {
+            return lease;
+        }
+        try {
+            return this.leaseAsync(filename).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("LEASE of " + filename + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a lease on " + filename);
+        }
+    }
+
+    /**
+     * Loads from the Dstores a lease names, without asking the Controller, or from the content
+     * cache if it holds the leased version. Returns null once none of the Dstores delivers a file
+     * of the leased size, after dropping the lease, so the caller falls back to LOAD.
+     */
+    private byte[] loadFromLease(String filename, Lease lease, long offset, int length) {
+        ClientLogger.getInstance().loadStarted(filename);
+        if (this.cache != null) {
+            byte[] cached = this.cache.get(filename, lease.version);
+            if (cached != null) {
+                if (length < 0) {
+                    return cached;
+                }
+                int from = (int) Math.min(offset, cached.length);
+                return Arrays.copyOfRange(cached, from, (int) Math.min((long) from + length, cached.length));
+            }
+        }
+        int first = ThreadLocalRandom.current().nextInt(lease.ports.length);
+        for (int i = 0; i < lease.ports.length; i++) {
+            int port = lease.ports[(first + i) % lease.ports.length];
+            ClientLogger.getInstance().dstoreWhereToLoadFrom(filename, port, (int) Math.min(Integer.MAX_VALUE, lease.size));
+            try {
+                byte[] data = HEDGE ? this.loadHedged(filename, port, offset, length, lease.size, lease)
+                        : this.loadFromDstore(filename, port, offset, length);
+                if (length >= 0) {
+                    return data;
+                }
+                if (data.length == lease.size) {
+                    if (this.cache != null) {
+                        this.cache.put(filename, lease.version, data);
+                    }
+                    return data;
+                }
+            } catch (IOException e) {
+                // Try the next replica
+            }
+        }
+        this.leases.remove(filename, lease);
+        return null;
+    }
+
+    /**
+     * Loads from {@code port}, and if that has not delivered by the hedge delay, from another
+     * replica as well, up to HEDGE_MAX more while the budget lasts. The first attempt to deliver
+     * wins and the rest are cancelled by closing their connections. The delay runs to delivery
+     * rather than the first bytes, since a stalling Dstore often gets the header and the start of
+     * the file out before it stops, and grows with the bytes expected from a file of {@code size}.
+     * The other replicas come from {@code lease}, or from a new lease if it is null. Fails only once
+     * every attempt has.
+     */
+    private byte[] loadHedged(String filename, int port, long offset, int length, long size, Lease lease) throws IOException {
+        this.earnHedge();
+        CompletableFuture<byte[]> winner = new CompletableFuture<>();
+        List<Attempt> attempts = new ArrayList<>();
+        AtomicInteger running = new AtomicInteger();
+        List<Integer> tried = new ArrayList<>();
+        tried.add(port);
+        attempts.add(this.startAttempt(filename, port, offset, length, winner, running));
+
+        long delay = this.hedgeDelayNanos(length < 0 ? size : Math.min(length, Math.max(0L, size - offset)));
+        try {
+            for (int hedges = 0; hedges < HEDGE_MAX && delay > 0L; hedges++) {
+                try {
+                    return winner.get(delay, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    // Slower than it should be: hedge if the budget allows
+                }
+                if (!this.spendHedge()) {
+                    break;
+                }
+                int other = -1;
+                try {
+                    Lease replicas = lease != null ? lease : this.lease(filename);
+                    for (int candidate : replicas.ports) {
+                        if (!tried.contains(candidate)) {
+                            other = candidate;
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    // No other replicas to hedge with; keep waiting on the ones already asked
+                }
+                if (other < 0) {
+                    break;
+                }
+                tried.add(other);
+                ClientLogger.getInstance().dstoreWhereToLoadFrom(filename, other, (int) Math.min(Integer.MAX_VALUE, length < 0 ? size : length));
+                attempts.add(this.startAttempt(filename, other, offset, length, winner, running));
+            }
+            return winner.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Load of " + filename + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted loading " + filename);
+        } finally {
+            for (Attempt attempt : attempts) {
+                attempt.cancel();
+            }
+        }
+    }
+
+    private Attempt startAttempt(String filename, int port, long offset, int length, CompletableFuture<byte[]> winner,
+                                 AtomicInteger running) {
+        Attempt attempt = new Attempt();
+        running.incrementAndGet();
+        TRANSFERS.execute(() -> {
+            try {
+                winner.complete(this.loadFromDstore(filename, port, offset, length, attempt));
+            } catch (IOException e) {
+                if (running.decrementAndGet() == 0) {
+                    winner.completeExceptionally(e);
+                }
+            }
+        });
+        return attempt;
+    }
+
+    private synchronized void recordDelivery(long nanos, long bytes) {
+        this.deliveryNanos[this.deliveryCount++ % this.deliveryNanos.length] = (long) (nanos / mebibytes(bytes));
+    }
+
+    // The HEDGE_PERCENTILE of recent LOAD_DATA times per MiB, for a load of that many bytes, or 0
+    // until there are enough of them to go by
+    private synchronized long hedgeDelayNanos(long bytes) {
+        int samples = Math.min(this.deliveryCount, this.deliveryNanos.length);
+        if (samples < 20) {
+            return 0L;
+        }
+        long[] sorted = Arrays.copyOf(this.deliveryNanos, samples);
+        Arrays.sort(sorted);
+        return (long) (sorted[Math.min(samples - 1, samples * HEDGE_PERCENTILE / 100)] * mebibytes(bytes));
+    }
+
+    // Loads under a MiB are mostly round trips, so they all count as one
+    private static double mebibytes(long bytes) {
+        return Math.max(1.0, bytes / (1024.0 * 1024.0));
+    }
+
+    private synchronized void earnHedge() {
+        this.hedgeTokens = Math.min(Math.max(1, HEDGE_MAX) * 10.0, this.hedgeTokens + HEDGE_BUDGET / 100.0);
+    }
+
+    private synchronized boolean spendHedge() {
+        if (this.hedgeTokens < 1.0) {
+            return false;
+        }
+        this.hedgeTokens--;
+        return true;
+    }
+
+    /**
+     * Pipelined LIST: any number of the *Async requests can be in flight on one Controller
+     * connection at once, and each future completes when its own replies arrive.
+     */
+    public CompletableFuture<String[]> listAsync() throws IOException {
+        CompletableFuture<String[]> result = new CompletableFuture<>();
+        ClientLogger.getInstance().listStarted();
+        this.pipeline().send("LIST", (id, reply) -> {
+            String[] parts = reply.trim().split(" ");
+            if (parts[0].equals("ERROR_NOT_ENOUGH_DSTORES")) {
+                ClientLogger.getInstance().listFailed();
+                throw new NotEnoughDstoresException();
+            }
+            if (!parts[0].equals("LIST")) {
+                ClientLogger.getInstance().listFailed();
+                throw new IOException("Unexpected message received (LIST was expected): " + reply);
+            }
+            ClientLogger.getInstance().listCompleted();
+            result.complete(Arrays.copyOfRange(parts, 1, parts.length));
+            return true;
+        }, result);
+        return result;
+    }
+
+    public CompletableFuture<Void> storeAsync(String filename, byte[] data) throws IOException {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        String message = "STORE " + filename + " " + data.length;
+        ClientLogger.getInstance().storeStarted(filename);
+        ControllerPipeline pipeline = this.pipeline();
+        pipeline.send(message, (id, reply) -> {
+            if (reply.trim().equals("STORE_COMPLETE")) {
+                ClientLogger.getInstance().storeCompleted(filename);
+                result.complete(null);
+                return true;
+            }
+            int[] ports = a(filename, reply);
+            ClientLogger.getInstance().dstoresWhereToStoreTo(filename, ports);
+            // Upload off the reader thread so other requests' replies keep flowing
+            TRANSFERS.execute(() -> {
+                try {
+                    if (CHAIN_STORE) {
+                        this.storeChain(filename, data, message, ports);
+                    } else {
+                        this.storeFanOut(filename, data, message, ports);
+                    }
+                    pipeline.touch(id);
+                } catch (IOException e) {
+                    pipeline.fail(id, e);
+                }
+            });
+            return false;
+        }, result);
+        return result;
+    }
+
+    /**
+     * Pipelined LOAD. When a Dstore fails to deliver, RELOAD is sent under the same request id.
+     * With -Dclient.metadata.cache=true or a content cache the file is leased instead, and LOAD is
+     * only the fallback.
+     */
+    public CompletableFuture<byte[]> loadAsync(String filename) throws IOException {
+        if (!METADATA_CACHE && this.cache == null) {
+            return this.loadPipelined(filename);
+        }
+        Lease cached = this.leases.get(filename);
+        CompletableFuture<Lease> lease = cached != null && cached.valid() ? CompletableFuture.completedFuture(cached) : this.leaseAsync(filename);
+        return lease.thenApplyAsync(leased -> this.loadFromLease(filename, leased, 0L, -1), TRANSFERS).thenCompose(data -> {
+            if (data != null) {
+                return CompletableFuture.completedFuture(data);
+            }
+            try {
+                return this.loadPipelined(filename);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
+    private CompletableFuture<byte[]> loadPipelined(String filename) throws IOException {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        ClientLogger.getInstance().loadStarted(filename);
+        ControllerPipeline pipeline = this.pipeline();
+        pipeline.send("LOAD " + filename + this.latencyOption(), (id, reply) -> {
+            String[] parts = reply.trim().split(" ");
+            if (parts[0].equals("ERROR_FILE_DOES_NOT_EXIST")) {
+                ClientLogger.getInstance().fileToLoadDoesNotExist(filename);
+                throw new FileDoesNotExistException(filename);
+            } else if (parts[0].equals("ERROR_NOT_ENOUGH_DSTORES")) {
+                throw new NotEnoughDstoresException();
+            } else if (!parts[0].equals("LOAD_FROM")) {
+                throw new IOException("Unexpected message received (expected message: LOAD_FROM): " + reply);
+            }
+
+            int port = Integer.parseInt(parts[1]);
+            long size = Long.parseLong(parts[2]);
+            ClientLogger.getInstance().dstoreWhereToLoadFrom(filename, port, (int) Math.min(Integer.MAX_VALUE, size));
+            TRANSFERS.execute(() -> {
+                try {
+                    byte[] data = HEDGE ? this.loadHedged(filename, port, 0L, -1, size, null) : this.loadFromDstore(filename, port);
+                    pipeline.finish(id);
+                    result.complete(data);
+                } catch (IOException e) {
+                    pipeline.sendFollowUp(id, "RELOAD " + filename + this.latencyOption());
+                }
+            });
+            return false;
+        }, result);
+        return result;
+    }
+
+    public CompletableFuture<Void> removeAsync(String filename) throws IOException {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        ClientLogger.getInstance().removeStarted(filename);
+        this.pipeline().send("REMOVE " + filename, (id, reply) -> {
+            String[] parts = reply.trim().split(" ");
+            if (parts[0].equals("REMOVE_COMPLETE")) {
+                ClientLogger.getInstance().removeComplete(filename);
+                result.complete(null);
+                return true;
+            }
+            ClientLogger.getInstance().removeFailed(filename);
+            if (parts[0].equals("ERROR_FILE_DOES_NOT_EXIST")) {
+                ClientLogger.getInstance().fileToRemoveDoesNotExist(filename);
+                throw new FileDoesNotExistException(filename);
+            } else if (parts[0].equals("ERROR_NOT_ENOUGH_DSTORES")) {
+                throw new NotEnoughDstoresException();
+            }
+            throw new IOException("Unexpected message received. Expected message: REMOVE_COMPLETE");
+        }, result);
+        return result;
+    }
+
+    /**
+     * Stores many files with one MSTORE: the Controller places the whole batch at once and reports
+     * every file's outcome in one reply. Returns each file's outcome in request order, e.g.
+     * STORE_COMPLETE, ERROR_FILE_ALREADY_EXISTS or ERROR_TIMEOUT.
+     */
+    public Map<String, String> storeAll(Map<String, byte[]> files) throws IOException, NotEnoughDstoresException {
+        if (!this.g) {
+            throw new IOException("Client not connected");
+        }
+        StringBuilder message = new StringBuilder("MSTORE");
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            if (file.getKey().contains(" ")) {
+                throw new IOException("Filename includes spaces (filename: " + file.getKey() + ")");
+            }
+            message.append(' ').append(file.getKey()).append(' ').append(file.getValue().length);
+            ClientLogger.getInstance().storeStarted(file.getKey());
+        }
+        this.e.println(message);
+        ClientLogger.getInstance().messageSent(this.c.getPort(), message.toString());
+
+        Map<String, String> placements = this.readBatchReply("MSTORE_TO");
+        List<String> accepted = new ArrayList<>();
+        for (Map.Entry<String, String> placement : placements.entrySet()) {
+            if (placement.getValue().startsWith("ERROR")) {
+                if (placement.getValue().equals("ERROR_FILE_ALREADY_EXISTS")) {
+                    ClientLogger.getInstance().fileToStoreAlreadyExists(placement.getKey());
+                }
+                continue;
+            }
+            accepted.add(placement.getKey());
+        }
+
+        this.inParallel(accepted, filename -> {
+            byte[] data = files.get(filename);
+            String store = "STORE " + filename + " " + data.length;
+            int[] ports = Arrays.stream(placements.get(filename).split(",")).mapToInt(Integer::parseInt).toArray();
+            ClientLogger.getInstance().dstoresWhereToStoreTo(filename, ports);
+            try {
+                if (CHAIN_STORE) {
+                    this.storeChain(filename, data, store, ports);
+                } else {
+                    this.storeFanOut(filename, data, store, ports);
+                }
+            } catch (IOException e) {
+                // The Controller reports the file as timed out
+            }
+        });
+
+        Map<String, String> results = this.readBatchReply("MSTORE_COMPLETE");
+        for (Map.Entry<String, String> placement : placements.entrySet()) {
+            if (!results.containsKey(placement.getKey())) {
+                results.put(placement.getKey(), placement.getValue());
+            } else if (results.get(placement.getKey()).equals("STORE_COMPLETE")) {
+                ClientLogger.getInstance().storeCompleted(placement.getKey());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Loads many files with one MLOAD. Each file is fetched from the first of its Dstores that
+     * delivers it; the result holds the files that could be loaded, in request order.
+     */
+    public Map<String, byte[]> loadAll(Collection<String> filenames) throws IOException, NotEnoughDstoresException {
+        if (!this.g) {
+            throw new IOException("Client not connected");
+        }
+        String message = "MLOAD " + String.join(" ", filenames);
+        this.e.println(message);
+        ClientLogger.getInstance().messageSent(this.c.getPort(), message);
+
+        Map<String, String> locations = this.readBatchReply("MLOAD_FROM");
+        List<String> found = new ArrayList<>();
+        for (Map.Entry<String, String> location : locations.entrySet()) {
+            ClientLogger.getInstance().loadStarted(location.getKey());
+            if (location.getValue().equals("ERROR_FILE_DOES_NOT_EXIST")) {
+                ClientLogger.getInstance().fileToLoadDoesNotExist(location.getKey());
+            } else {
+                found.add(location.getKey());
+            }
+        }
+
+        Map<String, byte[]> loaded = new ConcurrentHashMap<>();
+        this.inParallel(found, filename -> {
+            String[] location = locations.get(filename).split(":");
+            long size = Long.parseLong(location[0]);
+            String[] ports = location[1].split(",");
+            if (size > Integer.MAX_VALUE - 8) {
+                // Left out of the result like any other file that could not be loaded
+                ClientLogger.getInstance().error("File " + filename + " is too large to load into memory (" + size + " bytes); use loadChunked into a folder");
+                ClientLogger.getInstance().loadFailed(filename, 0);
+                return;
+            }
+            for (int i = 0; i < ports.length; i++) {
+                int port = Integer.parseInt(ports[i]);
+                ClientLogger.getInstance().dstoreWhereToLoadFrom(filename, port, (int) size);
+                try {
+                    loaded.put(filename, this.loadFromDstore(filename, port));
+                    return;
+                } catch (IOException e) {
+                    if (i + 1 < ports.length) {
+                        ClientLogger.getInstance().retryLoad(filename);
+                    }
+                }
+            }
+            ClientLogger.getInstance().loadFailed(filename, ports.length);
+        });
+
+        Map<String, byte[]> results = new LinkedHashMap<>();
+        for (String filename : found) {
+            if (loaded.containsKey(filename)) {
+                results.put(filename, loaded.get(filename));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Loads a file from all of its replicas at once: each Dstore serves its own share of
+     * client.stripe.size byte ranges, written straight into one preallocated array, so a large read
+     * is not limited to a single Dstore. A range a Dstore fails to deliver is fetched from another.
+     */
+    public byte[] loadStriped(String filename) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        Layout layout = this.locate(filename);
+        return this.fetchToArray(filename, layout, 0L, layout.size);
+    }
+
+    /**
+     * As {@link #loadStriped(String)}, but each range is written to its place in the file in
+     * {@code fileFolder}, so the file never has to fit in memory.
+     */
+    public void loadStriped(String filename, File fileFolder) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        checkFolder(fileFolder);
+        this.fetchToFile(filename, this.locate(filename), fileFolder);
+    }
+
+    /**
+     * Stores a file of any size as blocks with CSTORE. Each block goes to its own Dstores, read
+     * straight from the file, with client.block.parallelism blocks uploading at once.
+     */
+    public void storeChunked(File file) throws IOException, NotEnoughDstoresException, FileAlreadyExistsException {
+        String filename = file.getName();
+        this.checkFileToStore(file);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            String message = "CSTORE " + filename + " " + size;
+            this.e.println(message);
+            ClientLogger.getInstance().messageSent(this.c.getPort(), message);
+            ClientLogger.getInstance().storeStarted(filename);
+
+            String reply = this.readReply();
+            String[] parts = reply.split(" ");
+            if (parts[0].equals("ERROR_FILE_ALREADY_EXISTS")) {
+                ClientLogger.getInstance().fileToStoreAlreadyExists(filename);
+                throw new FileAlreadyExistsException(filename);
+            } else if (!parts[0].equals("CSTORE_TO") || parts.length % 2 != 0) {
+                String error = "Unexpected message received (CSTORE_TO was expected): " + reply;
+                ClientLogger.getInstance().error(error);
+                throw new IOException(error);
+            }
+
+            long blockSize = Long.parseLong(parts[1]);
+            List<String> blocks = new ArrayList<>();
+            Map<String, Long> offsets = new HashMap<>();
+            Map<String, int[]> placements = new HashMap<>();
+            for (int i = 2; i + 1 < parts.length; i += 2) {
+                offsets.put(parts[i], blocks.size() * blockSize);
+                blocks.add(parts[i]);
+                placements.put(parts[i], Arrays.stream(parts[i + 1].split(",")).mapToInt(Integer::parseInt).toArray());
+            }
+
+            this.inParallel(blocks, BLOCK_PARALLELISM, block -> {
+                long offset = offsets.get(block);
+                long length = Math.min(blockSize, size - offset);
+                int[] ports = placements.get(block);
+                ClientLogger.getInstance().dstoresWhereToStoreTo(block, ports);
+                Body body = out -> copyRange(channel, offset, length, out);
+                try {
+                    String store = withChecksums("STORE " + block + " " + length, channel, offset, length);
+                    if (CHAIN_STORE) {
+                        this.storeChain(block, body, null, store, ports);
+                    } else {
+                        this.storeFanOut(block, body, null, store, ports);
+                    }
+                } catch (IOException ex) {
+                    // The Controller never completes the file
+                }
+            });
+        }
+
+        this.awaitStoreComplete(filename);
+    }
+
+    /**
+     * Stores a file erasure coded with ESTORE, using the Controller's code (controller.ec.data
+     * and controller.ec.parity).
+     */
+    public void storeErasureCoded(File file) throws IOException, NotEnoughDstoresException, FileAlreadyExistsException {
+        this.storeErasureCoded(file, "");
+    }
+
+    /**
+     * Stores a file as {@code dataShards} data shards and {@code parityShards} Reed-Solomon parity
+     * shards, each on its own Dstore, so any {@code dataShards} of them rebuild the file. Parity is
+     * computed piece by piece on client.block.parallelism threads into temporary files, then every
+     * shard uploads at once, data shards straight from the file.
+     */
+    public void storeErasureCoded(File file, int dataShards, int parityShards) throws IOException, NotEnoughDstoresException, FileAlreadyExistsException {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256) {
+            throw new IOException("Invalid erasure code (data shards: " + dataShards + ", parity shards: " + parityShards + ")");
+        }
+        this.storeErasureCoded(file, " " + dataShards + " " + parityShards);
+    }
+
+    private void storeErasureCoded(File file, String code) throws IOException, NotEnoughDstoresException, FileAlreadyExistsException {
+        String filename = file.getName();
+        this.checkFileToStore(file);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            String message = "ESTORE " + filename + " " + size + code;
+            this.e.println(message);
+            ClientLogger.getInstance().messageSent(this.c.getPort(), message);
+            ClientLogger.getInstance().storeStarted(filename);
+
+            String reply = this.readReply();
+            String[] parts = reply.split(" ");
+            if (parts[0].equals("ERROR_FILE_ALREADY_EXISTS")) {
+                ClientLogger.getInstance().fileToStoreAlreadyExists(filename);
+                throw new FileAlreadyExistsException(filename);
+            } else if (!parts[0].equals("ESTORE_TO") || parts.length < 4
+                    || parts.length != 4 + 2 * (Integer.parseInt(parts[1]) + Integer.parseInt(parts[2]))) {
+                String error = "Unexpected message received (ESTORE_TO was expected): " + reply;
+                ClientLogger.getInstance().error(error);
+                throw new IOException(error);
+            }
+
+            int data = Integer.parseInt(parts[1]);
+            int parity = Integer.parseInt(parts[2]);
+            long shardSize = Long.parseLong(parts[3]);
+            List<Integer> shards = new ArrayList<>();
+            for (int shard = 0; shard < data + parity; shard++) {
+                shards.add(shard);
+            }
+
+            FileChannel[] parityFiles = new FileChannel[parity];
+            try {
+                for (int p = 0; p < parity; p++) {
+                    Path temp = Files.createTempFile(filename + "-", ".parity");
+                    parityFiles[p] = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.DELETE_ON_CLOSE);
+                }
+                this.encode(channel, size, data, shardSize, parityFiles);
+
+                this.inParallel(shards, data + parity, shard -> {
+                    String name = parts[4 + 2 * shard];
+                    int port = Integer.parseInt(parts[5 + 2 * shard]);
+                    ClientLogger.getInstance().dstoresWhereToStoreTo(name, new int[]{port});
+                    Body body;
+                    String store;
+                    try {
+                        if (shard < data) {
+                            long start = shard * shardSize;
+                            long length = Math.max(0L, Math.min(shardSize, size - start));
+                            store = withChecksum("STORE " + name + " " + shardSize, channel, start, length, shardSize - length);
+                            body = out -> {
+                                copyRange(channel, start, length, out);
+                                byte[] zeros = new byte[(int) Math.min(64 * 1024, Math.max(1L, shardSize - length))];
+                                for (long padding = shardSize - length; padding > 0; padding -= zeros.length) {
+                                    out.write(zeros, 0, (int) Math.min(zeros.length, padding));
+                                }
+                            };
+                        } else {
+                            store = withChecksum("STORE " + name + " " + shardSize, parityFiles[shard - data], 0L, shardSize, 0L);
+                            body = out -> copyRange(parityFiles[shard - data], 0L, shardSize, out);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    // A failed shard leaves the file incomplete and the Controller silent, as for CSTORE
+                    this.storeToDstore(name, body, null, store, port);
+                });
+            } finally {
+                for (FileChannel parityFile : parityFiles) {
+                    if (parityFile != null) {
+                        parityFile.close();
+                    }
+                }
+            }
+        }
+
+        this.awaitStoreComplete(filename);
+    }
+
+    // Computes the parity shards of a file into parityFiles, client.block.parallelism pieces at a time
+    private void encode(FileChannel channel, long size, int data, long shardSize, FileChannel[] parityFiles) throws IOException {
+        if (parityFiles.length == 0) {
+            return;
+        }
+        ReedSolomon codec = new ReedSolomon(data, parityFiles.length);
+        int pieceSize = pieceSize(data);
+        List<Long> pieces = new ArrayList<>();
+        for (long offset = 0; offset < shardSize; offset += pieceSize) {
+            pieces.add(offset);
+        }
+        this.inParallel(pieces, BLOCK_PARALLELISM, offset -> {
+            int length = (int) Math.min(pieceSize, shardSize - offset);
+            byte[][] piece = new byte[data + parityFiles.length][length];
+            try {
+                // What lies past the end of the file stays zero, as the padding of the last shards
+                for (int shard = 0; shard < data; shard++) {
+                    long position = shard * shardSize + offset;
+                    ByteBuffer buffer = ByteBuffer.wrap(piece[shard], 0, (int) Math.max(0L, Math.min(length, size - position)));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("File ended before " + size + " bytes");
+                        }
+                    }
+                }
+                codec.encode(piece, length);
+                for (int p = 0; p < parityFiles.length; p++) {
+                    ByteBuffer buffer = ByteBuffer.wrap(piece[data + p]);
+                    while (buffer.hasRemaining()) {
+                        parityFiles[p].write(buffer, offset + buffer.position());
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Bytes of each shard coded or decoded at once: about client.stripe.size of the file per piece
+    private static int pieceSize(int dataShards) {
+        return Math.max(64 * 1024, STRIPE_SIZE / dataShards);
+    }
+
+    /**
+     * Loads a file, chunked or not, into {@code fileFolder}, fetching its blocks from their
+     * Dstores in parallel.
+     */
+    public void loadChunked(String filename, File fileFolder) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        checkFolder(fileFolder);
+        this.fetchToFile(filename, this.locateBlocks(filename), fileFolder);
+    }
+
+    /**
+     * Reads {@code length} bytes from {@code offset} of a file, chunked or not, touching only the
+     * blocks that hold them. The result is shorter when the range runs past the end of the file.
+     */
+    public byte[] loadChunked(String filename, long offset, int length) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        if (offset < 0L || length < 0) {
+            throw new IOException("Invalid range (offset: " + offset + ", length: " + length + ")");
+        }
+        return this.fetchToArray(filename, this.locateBlocks(filename), offset, length);
+    }
+
+    /**
+     * Loads an erasure coded file into memory from any k of its shards, decoding whatever a failed
+     * Dstore should have supplied.
+     */
+    public byte[] loadErasureCoded(String filename) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        Layout layout = this.locateShards(filename);
+        if (layout.size > Integer.MAX_VALUE - 8) {
+            throw new IOException("File " + filename + " is too large to load into memory; load it into a folder instead");
+        }
+        byte[] data = new byte[(int) layout.size];
+        this.fetchShards(filename, layout, (position, piece) -> System.arraycopy(piece, 0, data, (int) position, piece.length));
+        ClientLogger.getInstance().loadCompleted(filename, layout.blocks.size());
+        return data;
+    }
+
+    /**
+     * As {@link #loadErasureCoded(String)}, but each decoded piece is written to its place in the
+     * file in {@code fileFolder}.
+     */
+    public void loadErasureCoded(String filename, File fileFolder) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        checkFolder(fileFolder);
+        Layout layout = this.locateShards(filename);
+        try (FileChannel channel = FileChannel.open(new File(fileFolder, filename).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            this.fetchShards(filename, layout, (position, piece) -> {
+                ByteBuffer buffer = ByteBuffer.wrap(piece);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            });
+        }
+        ClientLogger.getInstance().loadCompleted(filename, layout.blocks.size());
+    }
+
+    private void checkFileToStore(File file) throws IOException {
+        if (!file.isFile()) {
+            String error = "File to store does not exist (absolute path: " + file.getAbsolutePath() + ")";
+            ClientLogger.getInstance().error(error);
+            throw new IOException(error);
+        } else if (file.getName().contains(" ")) {
+            String error = "Filename includes spaces (absolute path: " + file.getAbsolutePath() + ")";
+            ClientLogger.getInstance().error(error);
+            throw new IOException(error);
+        } else if (!this.g) {
+            throw new IOException("Client not connected");
+        }
+    }
+
+    private void awaitStoreComplete(String filename) throws IOException, NotEnoughDstoresException {
+        String reply = this.readReply();
+        if (!reply.equals("STORE_COMPLETE")) {
+            String error = "Unexpected message received (STORE_COMPLETE was expected): " + reply;
+            ClientLogger.getInstance().error(error);
+            throw new IOException(error);
+        }
+        ClientLogger.getInstance().storeCompleted(filename);
+    }
+
+    private static void checkFolder(File fileFolder) throws IOException {
+        if (!fileFolder.isDirectory()) {
+            String error = "The folder where to store the file is not a directory (absolute path: " + fileFolder.getAbsolutePath() + ")";
+            ClientLogger.getInstance().error(error);
+            throw new IOException(error);
+        }
+    }
+
+    private static void copyRange(FileChannel channel, long offset, long length, OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(64 * 1024, Math.max(1, length)));
+        for (long position = offset; position < offset + length; ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), offset + length - position));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("File ended before " + (offset + length) + " bytes");
+            }
+            out.write(buffer.array(), 0, n);
+            position += n;
+        }
+    }
+
+    private byte[] fetchToArray(String filename, Layout layout, long offset, long length) throws IOException {
+        long count = Math.min(length, Math.max(0L, layout.size - offset));
+        if (count > Integer.MAX_VALUE - 8) {
+            throw new IOException("File " + filename + " is too large to load into memory; load it into a folder instead");
+        }
+        byte[] data = new byte[(int) count];
+        this.fetchRanges(filename, layout, layout.ranges(offset, count),
+                (position, stripe) -> System.arraycopy(stripe, 0, data, (int) (position - offset), stripe.length));
+        ClientLogger.getInstance().loadCompleted(filename, layout.blocks.size());
+        return data;
+    }
+
+    private void fetchToFile(String filename, Layout layout, File fileFolder) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(fileFolder, filename).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            this.fetchRanges(filename, layout, layout.ranges(0L, layout.size), (position, stripe) -> {
+                ByteBuffer buffer = ByteBuffer.wrap(stripe);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            });
+        }
+        ClientLogger.getInstance().loadCompleted(filename, layout.blocks.size());
+    }
+
+    /**
+     * Asks the Controller for every live replica of a file, with an MLOAD of just that file. The
+     * whole file is then one block.
+     */
+    private Layout locate(String filename) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        this.sendLoadRequest("MLOAD", filename);
+        String location = this.readBatchReply("MLOAD_FROM").get(filename);
+        if (location == null || location.equals("ERROR_FILE_DOES_NOT_EXIST")) {
+            ClientLogger.getInstance().fileToLoadDoesNotExist(filename);
+            throw new FileDoesNotExistException(filename);
+        }
+        String[] parts = location.split(":");
+        long size = Long.parseLong(parts[0]);
+        Layout layout = new Layout(size, Math.max(1L, size));
+        layout.add(filename, parts[1]);
+        return layout;
+    }
+
+    /**
+     * Asks the Controller for the block map of a file with CLOAD.
+     */
+    private Layout locateBlocks(String filename) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        this.sendLoadRequest("CLOAD", filename);
+        String reply = this.readReply();
+        String[] parts = reply.split(" ");
+        if (parts[0].equals("ERROR_FILE_DOES_NOT_EXIST")) {
+            ClientLogger.getInstance().fileToLoadDoesNotExist(filename);
+            throw new FileDoesNotExistException(filename);
+        } else if (!parts[0].equals("CLOAD_FROM") || parts.length % 2 != 1) {
+            String error = "Unexpected message received (CLOAD_FROM was expected): " + reply;
+            ClientLogger.getInstance().error(error);
+            throw new IOException(error);
+        }
+        Layout layout = new Layout(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        for (int i = 3; i + 1 < parts.length; i += 2) {
+            layout.add(parts[i], parts[i + 1]);
+        }
+        return layout;
+    }
+
+    /**
+     * Asks the Controller for the shard map of an erasure coded file with ELOAD. Each shard is a
+     * block of the layout, data shards first.
+     */
+    private Layout locateShards(String filename) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        this.sendLoadRequest("ELOAD", filename);
+        String reply = this.readReply();
+        String[] parts = reply.split(" ");
+        if (parts[0].equals("ERROR_FILE_DOES_NOT_EXIST")) {
+            ClientLogger.getInstance().fileToLoadDoesNotExist(filename);
+            throw new FileDoesNotExistException(filename);
+        } else if (!parts[0].equals("ELOAD_FROM") || parts.length < 5 || parts.length % 2 != 1) {
+            String error = "Unexpected message received (ELOAD_FROM was expected): " + reply;
+            ClientLogger.getInstance().error(error);
+            throw new IOException(error);
+        }
+        Layout layout = new Layout(Long.parseLong(parts[1]), Long.parseLong(parts[4]));
+        layout.dataShards = Integer.parseInt(parts[2]);
+        for (int i = 5; i + 1 < parts.length; i += 2) {
+            layout.add(parts[i], parts[i + 1]);
+        }
+        return layout;
+    }
+
+    private void sendLoadRequest(String command, String filename) throws IOException {
+        if (!this.g) {
+            throw new IOException("Client not connected");
+        }
+        if (filename.contains(" ")) {
+            throw new IOException("Filename includes spaces (filename: " + filename + ")");
+        }
+        String message = command + " " + filename;
+        this.e.println(message);
+        ClientLogger.getInstance().messageSent(this.c.getPort(), message);
+        ClientLogger.getInstance().loadStarted(filename);
+    }
+
+    /**
+     * Fetches {@code ranges} with one worker per Dstore involved. Each worker keeps to the Dstore
+     * that last served it while that Dstore holds the block, so the load spreads over the cluster,
+     * and a range a Dstore fails to deliver is retried on the block's other replicas.
+     */
+    private void fetchRanges(String filename, Layout layout, List<Range> ranges, StripeSink sink) throws IOException {
+        Queue<Range> queue = new ConcurrentLinkedQueue<>(ranges);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        long dstores = layout.ports.stream().flatMapToInt(Arrays::stream).distinct().count();
+
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(dstores, ranges.size()); i++) {
+            int first = i;
+            workers.add(TRANSFERS.submit(() -> {
+                int home = -1;
+                Range range;
+                while (failure.get() == null && (range = queue.poll()) != null) {
+                    String block = layout.blocks.get(range.block);
+                    int[] ports = layout.ports.get(range.block);
+                    int start = (first + range.block) % Math.max(1, ports.length);
+                    for (int j = 0; j < ports.length; j++) {
+                        if (ports[j] == home) {
+                            start = j;
+                            break;
+                        }
+                    }
+
+                    byte[] bytes = null;
+                    IOException last = new IOException("No Dstore holds " + block);
+                    for (int attempt = 0; attempt < ports.length && bytes == null; attempt++) {
+                        int port = ports[(start + attempt) % ports.length];
+                        try {
+                            range.blockChecksum = -1L;
+                            bytes = this.loadFromDstore(block, port, range.offset, range.length, null, range);
+                            if (bytes.length != range.length) {
+                                throw new IOException("Dstore " + port + " sent " + bytes.length + " of " + range.length + " bytes at offset " + range.offset);
+                            }
+                            CRC32C checksum = new CRC32C();
+                            checksum.update(bytes);
+                            range.checksum = checksum.getValue();
+                            home = port;
+                        } catch (IOException e) {
+                            bytes = null;
+                            last = e;
+                            ClientLogger.getInstance().retryLoad(filename);
+                        }
+                    }
+                    try {
+                        if (bytes == null) {
+                            throw last;
+                        }
+                        sink.write(range.position, bytes);
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (ExecutionException e) {
+                failure.compareAndSet(null, new IOException("Load of " + filename + " failed", e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while loading " + filename);
+            }
+        }
+        if (failure.get() == null) {
+            failure.set(verifyBlocks(layout, ranges));
+        }
+        if (failure.get() != null) {
+            ClientLogger.getInstance().loadFailed(filename, (int) dstores);
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Checks every block fetched whole, in however many ranges, against the checksum its Dstores
+     * recorded: the CRC32Cs of the ranges, combined in order, must give it. Returns the failure, or
+     * null. A block only partly fetched cannot be checked without reading the rest of it.
+     */
+    private static IOException verifyBlocks(Layout layout, List<Range> ranges) {
+        Map<Integer, List<Range>> byBlock = new HashMap<>();
+        for (Range range : ranges) {
+            byBlock.computeIfAbsent(range.block, k -> new ArrayList<>()).add(range);
+        }
+        for (Map.Entry<Integer, List<Range>> entry : byBlock.entrySet()) {
+            List<Range> pieces = entry.getValue();
+            pieces.sort(Comparator.comparingLong(range -> range.offset));
+            long blockLength = Math.min(layout.blockSize, layout.size - entry.getKey() * layout.blockSize);
+            long expected = pieces.get(0).blockChecksum;
+            long covered = 0L;
+            long combined = 0L;
+            for (Range range : pieces) {
+                if (range.offset != covered || range.blockChecksum != expected) {
+                    expected = -1L;
+                    break;
+                }
+                combined = covered == 0L ? range.checksum : crc32cCombine(combined, range.checksum, range.length);
+                covered += range.length;
+            }
+            if (expected != -1L && covered == blockLength && combined != expected) {
+                return new IOException("Checksum mismatch in " + layout.blocks.get(entry.getKey()));
+            }
+        }
+        return null;
+    }
+
+    // The CRC32C of two pieces of data one after the other, from the CRC32Cs of each; as zlib's crc32_combine
+    static long crc32cCombine(long first, long second, long secondLength) {
+        if (secondLength <= 0) {
+            return first;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = 0x82F63B78L; // the reversed Castagnoli polynomial: the operator for one zero bit
+        for (int n = 1; n < 32; n++) {
+            odd[n] = 1L << (n - 1);
+        }
+        gf2Square(even, odd); // two zero bits
+        gf2Square(odd, even); // four
+        long crc = first;
+        long length = secondLength;
+        do {
+            gf2Square(even, odd);
+            if ((length & 1) != 0) {
+                crc = gf2Times(even, crc);
+            }
+            length >>= 1;
+            if (length == 0) {
+                break;
+            }
+            gf2Square(odd, even);
+            if ((length & 1) != 0) {
+                crc = gf2Times(odd, crc);
+            }
+            length >>= 1;
+        } while (length != 0);
+        return crc ^ second;
+    }
+
+    private static long gf2Times(long[] matrix, long vector) {
+        long sum = 0L;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2Square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2Times(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * Reads an erasure coded file piece by piece, client.block.parallelism pieces at once. Each
+     * piece is the same range of k shards, data shards first; a shard whose Dstore fails is dropped
+     * for the rest of the load and its pieces are decoded from parity instead.
+     */
+    private void fetchShards(String filename, Layout layout, StripeSink sink) throws IOException {
+        int data = layout.dataShards;
+        int total = layout.blocks.size();
+        ReedSolomon codec = new ReedSolomon(data, total - data);
+        Set<Integer> lost = ConcurrentHashMap.newKeySet();
+        int pieceSize = pieceSize(data);
+        List<Long> pieces = new ArrayList<>();
+        for (long offset = 0; offset < layout.blockSize && layout.size > 0; offset += pieceSize) {
+            pieces.add(offset);
+        }
+
+        try {
+            this.inParallel(pieces, BLOCK_PARALLELISM, offset -> {
+                int length = (int) Math.min(pieceSize, layout.blockSize - offset);
+                byte[][] shards = new byte[total][];
+                int present = 0;
+                boolean decode = false;
+                for (int shard = 0; shard < total && present < data; shard++) {
+                    if (shard < data && shard * layout.blockSize + offset >= layout.size) {
+                        shards[shard] = new byte[length]; // nothing but padding
+                    } else if (!lost.contains(shard)) {
+                        shards[shard] = this.fetchShard(filename, layout, shard, offset, length);
+                        if (shards[shard] == null) {
+                            lost.add(shard);
+                        }
+                    }
+                    if (shards[shard] != null) {
+                        present++;
+                    } else if (shard < data) {
+                        decode = true;
+                    }
+                }
+                try {
+                    if (present < data) {
+                        throw new IOException("Only " + present + " of the " + data + " shards needed to load " + filename + " could be read");
+                    }
+                    if (decode) {
+                        codec.reconstruct(shards, length);
+                    }
+                    for (int shard = 0; shard < data; shard++) {
+                        long position = shard * layout.blockSize + offset;
+                        int count = (int) Math.max(0L, Math.min(length, layout.size - position));
+                        if (count > 0) {
+                            sink.write(position, count == length ? shards[shard] : Arrays.copyOf(shards[shard], count));
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            ClientLogger.getInstance().loadFailed(filename, total);
+            throw e;
+        }
+    }
+
+    // Null when none of the shard's Dstores delivers it
+    private byte[] fetchShard(String filename, Layout layout, int shard, long offset, int length) {
+        for (int port : layout.ports.get(shard)) {
+            try {
+                byte[] bytes = this.loadFromDstore(layout.blocks.get(shard), port, offset, length);
+                if (bytes.length == length) {
+                    return bytes;
+                }
+            } catch (IOException e) {
+                // Try the shard's next Dstore, if it has one
+            }
+            ClientLogger.getInstance().retryLoad(filename);
+        }
+        return null;
+    }
+
+    private interface StripeSink {
+        void write(long position, byte[] stripe) throws IOException;
+    }
+
+    /**
+     * One LOAD_DATA of a hedged load. Cancelling closes its connection, which fails the attempt if
+     * it is still running; an attempt detaches before it gives its connection back to the pool.
+     */
+    private static class Attempt {
+        private DstoreConnectionPool.Connection connection;
+        private boolean cancelled;
+
+        // False if the attempt was cancelled before it got a connection
+        synchronized boolean attach(DstoreConnectionPool.Connection connection) {
+            this.connection = connection;
+            return !this.cancelled;
+        }
+
+        synchronized void detach() {
+            this.connection = null;
+        }
+
+        synchronized void cancel() {
+            this.cancelled = true;
+            if (this.connection != null) {
+                this.connection.close();
+            }
+        }
+    }
+
+    /**
+     * Where a file's replicas are, as leased from the Controller until {@code expiresAt}
+     * ({@link System#nanoTime()}), and which stored version of the file they hold.
+     */
+    private static class Lease {
+        final long size;
+        final long version;
+        final int[] ports;
+        final long expiresAt;
+
+        Lease(long size, long version, int[] ports, long expiresAt) {
+            this.size = size;
+            this.version = version;
+            this.ports = ports;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean valid() {
+            return this.expiresAt - System.nanoTime() > 0L;
+        }
+    }
+
+    /**
+     * Where a file's bytes live: its blocks in order, each with the Dstores holding it. A file
+     * that is not chunked is a single block named after the file.
+     */
+    private static class Layout {
+        final long size;
+        // Or the shard size of an erasure coded file
+        final long blockSize;
+        // Set for an erasure coded file, whose blocks are its data shards then its parity shards
+        int dataShards;
+        final List<String> blocks = new ArrayList<>();
+        final List<int[]> ports = new ArrayList<>();
+
+        Layout(long size, long blockSize) {
+            this.size = size;
+            this.blockSize = blockSize;
+        }
+
+        // "-" is a block no live Dstore holds
+        void add(String block, String portList) {
+            blocks.add(block);
+            ports.add(portList.equals("-") ? new int[0] : Arrays.stream(portList.split(",")).mapToInt(Integer::parseInt).toArray());
+        }
+
+        /**
+         * Cuts {@code count} bytes from {@code offset} into pieces of at most client.stripe.size,
+         * none crossing a block boundary.
+         */
+        List<Range> ranges(long offset, long count) {
+            List<Range> ranges = new ArrayList<>();
+            long end = Math.min(size, offset + count);
+            for (long position = offset; position < end; ) {
+                int block = (int) (position / blockSize);
+                long blockStart = block * blockSize;
+                int length = (int) Math.min(STRIPE_SIZE, Math.min(end, blockStart + blockSize) - position);
+                ranges.add(new Range(block, position - blockStart, position, length));
+                position += length;
+            }
+            return ranges;
+        }
+    }
+
+    private static class Range {
+        final int block;
+        // Within the block
+        final long offset;
+        // Within the file
+        final long position;
+        final int length;
+        // Set once fetched: the CRC32C of its bytes, and the one recorded for its whole block, or -1
+        long checksum;
+        long blockChecksum = -1L;
+
+        Range(int block, long offset, long position, int length) {
+            this.block = block;
+            this.offset = offset;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Removes many files with one MREMOVE. Returns each file's outcome in request order, e.g.
+     * REMOVE_COMPLETE, ERROR_FILE_DOES_NOT_EXIST or ERROR_TIMEOUT.
+     */
+    public Map<String, String> removeAll(Collection<String> filenames) throws IOException, NotEnoughDstoresException {
+        if (!this.g) {
+            throw new IOException("Client not connected");
+        }
+        String message = "MREMOVE " + String.join(" ", filenames);
+        this.e.println(message);
+        ClientLogger.getInstance().messageSent(this.c.getPort(), message);
+        for (String filename : filenames) {
+            ClientLogger.getInstance().removeStarted(filename);
+        }
+
+        Map<String, String> results = this.readBatchReply("MREMOVE_COMPLETE");
+        for (Map.Entry<String, String> result : results.entrySet()) {
+            if (result.getValue().equals("REMOVE_COMPLETE")) {
+                ClientLogger.getInstance().removeComplete(result.getKey());
+            } else {
+                if (result.getValue().equals("ERROR_FILE_DOES_NOT_EXIST")) {
+                    ClientLogger.getInstance().fileToRemoveDoesNotExist(result.getKey());
+                }
+                ClientLogger.getInstance().removeFailed(result.getKey());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Reads a batch reply, {@code <expected> <file> <value> <file> <value> ...}, into a map in
+     * reply order.
+     */
+    private Map<String, String> readBatchReply(String expected) throws IOException, NotEnoughDstoresException {
+        String reply = this.readReply();
+        String[] parts = reply.split(" ");
+        if (!parts[0].equals(expected) || parts.length % 2 == 0) {
+            String error = "Unexpected message received (" + expected + " was expected): " + reply;
+            ClientLogger.getInstance().error(error);
+            throw new IOException(error);
+        }
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 1; i + 1 < parts.length; i += 2) {
+            values.put(parts[i], parts[i + 1]);
+        }
+        return values;
+    }
+
+    /**
+     * Reads one Controller reply, trimmed, failing on a closed connection or ERROR_NOT_ENOUGH_DSTORES.
+     */
+    private String readReply() throws IOException, NotEnoughDstoresException {
+        String reply;
+        try {
+            reply = this.d.readLine();
+        } catch (SocketTimeoutException e) {
+            ClientLogger.getInstance().timeoutExpiredWhileReading(this.c.getPort());
+            throw e;
+        }
+        ClientLogger.getInstance().messageReceived(this.c.getPort(), reply);
+        if (reply == null) {
+            String error = "Connection closed by the Controller";
+            ClientLogger.getInstance().error(error);
+            throw new IOException(error);
+        }
+        reply = reply.trim();
+        if (reply.equals("ERROR_NOT_ENOUGH_DSTORES")) {
+            ClientLogger.getInstance().error("Not enough Dstores have joined the data store yet");
+            throw new NotEnoughDstoresException();
+        }
+        return reply;
+    }
+
+    /**
+     * Runs {@code task} over every item, a file or a piece of one, with at most
+     * {@code parallelism} running at once.
+     */
+    private <T> void inParallel(List<T> items, Consumer<T> task) throws IOException {
+        this.inParallel(items, BATCH_PARALLELISM, task);
+    }
+
+    private <T> void inParallel(List<T> items, int parallelism, Consumer<T> task) throws IOException {
+        Queue<T> queue = new ConcurrentLinkedQueue<>(items);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, items.size()); i++) {
+            workers.add(TRANSFERS.submit(() -> {
+                T item;
+                while ((item = queue.poll()) != null) {
+                    task.accept(item);
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw new IOException("Batch transfer failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during batch transfer");
+            }
+        }
+    }
+
     public void wrongStore(String filename, byte[] data) throws IOException, NotEnoughDstoresException, FileAlreadyExistsException {
         if (!this.g) {
             throw new IOException("Client not connected");
@@ -335,6 +1965,24 @@ public class Client {
     }
 
     public byte[] load(String filename) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        return this.loadRange(filename, 0L, -1);
+    }
+
+    /**
+     * Reads {@code length} bytes of a file starting at {@code offset}; the Dstore only reads and
+     * sends that slice. The result is shorter when the range runs past the end of the file.
+     */
+    public byte[] load(String filename, long offset, int length) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
+        if (offset < 0L || length < 0) {
+            String var4 = "Invalid range (offset: " + offset + ", length: " + length + ")";
+            ClientLogger.getInstance().error(var4);
+            throw new IOException(var4);
+        }
+        return this.loadRange(filename, offset, length);
+    }
+
+    // A negative length reads the whole file
+    private byte[] loadRange(String filename, long offset, int length) throws IOException, NotEnoughDstoresException, FileDoesNotExistException {
         if (!this.g) {
             throw new IOException("Client not connected");
         } else {
@@ -345,25 +1993,31 @@ public class Client {
                 ClientLogger.getInstance().error(var2);
                 throw new IOException(var2);
             } else {
-                var2 = "LOAD ".concat(String.valueOf(filename));
+                if (METADATA_CACHE || this.cache != null) {
+                    byte[] leased = this.loadFromLease(filename, this.lease(filename), offset, length);
+                    if (leased != null) {
+                        return leased;
+                    }
+                }
+                var2 = "LOAD ".concat(String.valueOf(filename)) + this.latencyOption();
                 this.e.println(var2);
                 ClientLogger.getInstance().messageSent(this.c.getPort(), var2);
                 ClientLogger.getInstance().loadStarted(filename);
                 byte[] var6 = null;
 
                 try {
-                    var6 = this.a(filename);
+                    var6 = this.a(filename, offset, length);
                 } catch (a var5) {
                 }
 
                 while(var6 == null) {
-                    String var3 = "RELOAD ".concat(String.valueOf(filename));
+                    String var3 = "RELOAD ".concat(String.valueOf(filename)) + this.latencyOption();
                     this.e.println(var3);
                     ClientLogger.getInstance().messageSent(this.c.getPort(), var3);
                     ClientLogger.getInstance().retryLoad(filename);
 
                     try {
-                        var6 = this.a(filename);
+                        var6 = this.a(filename, offset, length);
                     } catch (a var4) {
                     }
 
@@ -422,7 +2076,7 @@ public class Client {
         }
     }
 
-    private byte[] a(String var1) throws IOException {
+    private byte[] a(String var1, long offset, int length) throws IOException {
         String var2;
         try {
             var2 = this.d.readLine();
@@ -453,62 +2107,132 @@ public class Client {
                 throw new IOException(var22);
             } else {
                 int var4;
-                int var20;
+                long var20;
                 try {
                     var4 = Integer.parseInt(var3[1]);
-                    var20 = Integer.parseInt(var3[2]);
+                    var20 = Long.parseLong(var3[2]);
                 } catch (Exception var15) {
                     String var5 = "Error parsing LOAD_FROM message to extract Dstore port and filesize. Received message: ".concat(String.valueOf(var2));
                     ClientLogger.getInstance().error(var5);
                     throw new IOException(var5);
                 }
 
-                ClientLogger.getInstance().dstoreWhereToLoadFrom(var1, var4, var20);
-                Socket var19 = null;
-                boolean var13 = false;
-
-                byte[] var24;
+                // The logger takes an int size; files past 2 GB are logged at the cap
+                ClientLogger.getInstance().dstoreWhereToLoadFrom(var1, var4, (int) Math.min(Integer.MAX_VALUE, var20));
+                ++this.f;
                 try {
-                    var13 = true;
-                    ++this.f;
-                    (var19 = new Socket(InetAddress.getLoopbackAddress(), var4)).setSoTimeout(this.b);
-                    ClientLogger.getInstance().connectionEstablished(var19.getPort());
-                    PrintWriter var23 = new PrintWriter(var19.getOutputStream(), true);
-                    InputStream var6 = var19.getInputStream();
-                    String var7 = "LOAD_DATA ".concat(String.valueOf(var1));
-                    var23.println(var7);
-                    ClientLogger.getInstance().messageSent(var19.getPort(), var7);
-                    ClientLogger.getInstance().loadFromDstore(var1, var4);
+                    return HEDGE ? this.loadHedged(var1, var4, offset, length, var20, null) : this.loadFromDstore(var1, var4, offset, length);
+                } catch (IOException var17) {
+                    throw new a(this, var17);
+                }
+            }
+        }
+    }
 
-                    try {
-                        var24 = var6.readNBytes(var20);
-                    } catch (SocketTimeoutException var14) {
-                        ClientLogger.getInstance().timeoutExpiredWhileReading(var19.getPort());
-                        throw var14;
-                    }
+    /**
+     * Fetches a file over a pooled connection. Framed reply: DATA <size> then the bytes, or an
+     * error line on a connection that stays open. DATA <size> DEFLATE is followed by DeflateBlocks,
+     * inflated here. A crc32c=<hex> at the end of the header is the checksum the Dstore recorded when
+     * the file was stored; bytes that do not match it fail the load, so it moves on to another replica.
+     */
+    private byte[] loadFromDstore(String filename, int port) throws IOException {
+        return this.loadFromDstore(filename, port, 0L, -1);
+    }
 
-                    if (var24.length < var20) {
-                        int var25 = var24.length;
-                        throw new IOException("Expected to read " + var20 + " bytes, read " + var25 + " bytes instead");
-                    }
+    private byte[] loadFromDstore(String filename, int port, long offset, int length) throws IOException {
+        return this.loadFromDstore(filename, port, offset, length, null, null);
+    }
 
-                    ClientLogger.getInstance().loadCompleted(var1, var4);
-                    var13 = false;
-                } catch (IOException var17) {
-                    ClientLogger.getInstance().loadFromDstoreFailed(var1, var4);
-                    throw new a(this, var17);
-                } finally {
-                    if (var13) {
-                        if (var19 != null) {
-                            var19.close();
-                        }
+    // An attempt that is part of a hedged load can be cancelled from another thread while it runs
+    private byte[] loadFromDstore(String filename, int port, long offset, int length, Attempt attempt) throws IOException {
+        return this.loadFromDstore(filename, port, offset, length, attempt, null);
+    }
 
+    // A range of a striped or chunked load is given the file-crc32c=<hex> of its block, if the reply has one
+    private byte[] loadFromDstore(String filename, int port, long offset, int length, Attempt attempt, Range range) throws IOException {
+        // Read once: the losing attempts of a hedged load may still be running after disconnect()
+        DstoreConnectionPool pool = this.pool;
+        if (pool == null) {
+            throw new IOException("Not connected");
+        }
+        DstoreConnectionPool.Connection connection = null;
+        long started = System.nanoTime();
+        try {
+            connection = pool.borrow(port);
+            if (attempt != null && !attempt.attach(connection)) {
+                throw new IOException("Load of " + filename + " from Dstore " + port + " cancelled");
+            }
+            String request = length < 0 ? "LOAD_DATA " + filename : "LOAD_DATA " + filename + " " + offset + " " + length;
+            connection.sendLine(request);
+            ClientLogger.getInstance().messageSent(port, request);
+            ClientLogger.getInstance().loadFromDstore(filename, port);
+
+            byte[] data;
+            try {
+                String header = connection.readLine();
+                if (header == null || !header.startsWith("DATA ")) {
+                    ClientLogger.getInstance().messageReceived(port, header);
+                    if (header != null) {
+                        if (attempt != null) {
+                            attempt.detach();
+                        }
+                        pool.release(connection);
+                        connection = null;
                     }
+                    throw new IOException("Unexpected reply to LOAD_DATA from Dstore " + port + ": " + header);
+                }
+                String[] fields = header.trim().split(" ");
+                long size = Long.parseLong(fields[1]);
+                if (size > Integer.MAX_VALUE - 8) {
+                    throw new IOException("File " + filename + " is too large to load into memory (" + size + " bytes); use loadChunked into a folder");
                 }
+                data = connection.in.readNBytes((int) size);
+                if (data.length < size) {
+                    throw new IOException("Expected to read " + size + " bytes, read " + data.length + " bytes instead");
+                }
+                boolean compressed = false;
+                for (int i = 2; i < fields.length; i++) {
+                    if (fields[i].equals("DEFLATE")) {
+                        compressed = true;
+                    } else if (fields[i].startsWith("file-crc32c=") && range != null) {
+                        range.blockChecksum = Long.parseUnsignedLong(fields[i].substring("file-crc32c=".length()), 16);
+                    } else if (fields[i].startsWith("crc32c=")) {
+                        CRC32C checksum = new CRC32C();
+                        checksum.update(data);
+                        if (checksum.getValue() != Long.parseUnsignedLong(fields[i].substring("crc32c=".length()), 16)) {
+                            if (attempt != null) {
+                                attempt.detach();
+                            }
+                            pool.release(connection);
+                            connection = null;
+                            throw new IOException("Checksum mismatch in " + filename + " from Dstore " + port);
+                        }
+                    }
+                }
+                if (compressed) {
+                    data = DeflateBlocks.decompress(data);
+                }
+            } catch (SocketTimeoutException e) {
+                ClientLogger.getInstance().timeoutExpiredWhileReading(port);
+                throw e;
+            }
 
-                var19.close();
-                return var24;
+            ClientLogger.getInstance().loadCompleted(filename, port);
+            if (attempt != null) {
+                attempt.detach();
+            }
+            pool.release(connection);
+            if (HEDGE) {
+                this.recordDelivery(System.nanoTime() - started, data.length);
+            }
+            this.recordLatency(port, started);
+            return data;
+        } catch (IOException e) {
+            if (connection != null) {
+                pool.discard(connection);
             }
+            ClientLogger.getInstance().loadFromDstoreFailed(filename, port);
+            throw e;
         }
     }
 
@@ -554,7 +2278,7 @@ public class Client {
                 }
 
                 ClientLogger.getInstance().dstoreWhereToLoadFrom(var1, var4, var13);
-                var2 = null;
+                Socket var16 = null;
 
                 try {
                     ++this.f;
@@ -563,8 +2287,8 @@ public class Client {
                     ClientLogger.getInstance().loadFromDstoreFailed(var1, var4);
                     throw new a(this, var9);
                 } finally {
-                    if (var2 != null) {
-                        var2.close();
+                    if (var16 != null) {
+                        var16.close();
                     }
 
                 }
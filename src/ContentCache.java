@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Whole files a client has loaded, kept in memory up to a byte budget and, past it, spilled to a
+ * folder on disk up to a second budget. Each file is tagged with the version the Controller leased
+ * it under, and a lookup only hits for the version the caller's lease names, so a file that was
+ * removed and stored again is never served from the cache. When a tier is full it evicts its least
+ * recently used file, or with {@link Policy#LFU} its least often used one, the least recently used
+ * of those first. Files pushed out of memory move to disk; files pushed off the disk are dropped.
+ */
+class ContentCache {
+
+    enum Policy {
+        LRU,
+        LFU
+    }
+
+    private static class Entry {
+        final String filename;
+        final long version;
+        final int size;
+        // Exactly one of these is set: the bytes in memory, or the file they were spilled to
+        byte[] data;
+        Path spilled;
+        long uses;
+        long lastUse;
+
+        Entry(String filename, long version, byte[] data) {
+            this.filename = filename;
+            this.version = version;
+            this.size = data.length;
+            this.data = data;
+        }
+    }
+
+    private final long memoryCapacity;
+    private final long diskCapacity;
+    // Where spilled files go; null until the first spill, and for good if it cannot be created
+    private final Path spillParent;
+    private Path spillFolder;
+    private boolean spillFailed;
+    private final Map<String, Entry> entries = new HashMap<>();
+    // Each tier ordered by eviction priority, the next victim first
+    private final TreeSet<Entry> inMemory;
+    private final TreeSet<Entry> onDisk;
+    private long memoryBytes;
+    private long diskBytes;
+    private long clock;
+    private long nextSpill;
+
+    ContentCache(long memoryCapacity, Path spillParent, long diskCapacity, Policy policy) {
+        this.memoryCapacity = memoryCapacity;
+        this.spillParent = spillParent;
+        this.diskCapacity = spillParent != null ? diskCapacity : 0L;
+        Comparator<Entry> recency = Comparator.comparingLong(entry -> entry.lastUse);
+        Comparator<Entry> order = policy == Policy.LFU ? Comparator.<Entry>comparingLong(entry -> entry.uses).thenComparing(recency) : recency;
+        // lastUse is unique, so no two entries compare equal
+        this.inMemory = new TreeSet<>(order);
+        this.onDisk = new TreeSet<>(order);
+    }
+
+    /**
+     * Returns a copy of the cached bytes of {@code filename}, or null unless they are cached for
+     * exactly {@code version}. A copy cached for another version is dropped.
+     */
+    byte[] get(String filename, long version) {
+        Path spilled;
+        synchronized (this) {
+            Entry entry = entries.get(filename);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.version != version) {
+                remove(entry);
+                return null;
+            }
+            TreeSet<Entry> tier = entry.data != null ? inMemory : onDisk;
+            tier.remove(entry);
+            entry.uses++;
+            entry.lastUse = ++clock;
+            tier.add(entry);
+            if (entry.data != null) {
+                return entry.data.clone();
+            }
+            spilled = entry.spilled;
+        }
+        // Read outside the lock; a file evicted meanwhile is just a miss
+        try {
+            return Files.readAllBytes(spilled);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    synchronized void put(String filename, long version, byte[] data) {
+        Entry old = entries.get(filename);
+        if (old != null) {
+            remove(old);
+        }
+        if (data.length > memoryCapacity) {
+            return;
+        }
+        Entry entry = new Entry(filename, version, data.clone());
+        entry.uses = 1;
+        entry.lastUse = ++clock;
+        entries.put(filename, entry);
+        inMemory.add(entry);
+        memoryBytes += entry.size;
+
+        while (memoryBytes > memoryCapacity) {
+            Entry victim = inMemory.pollFirst();
+            memoryBytes -= victim.size;
+            if (!spill(victim)) {
+                entries.remove(victim.filename);
+            }
+        }
+    }
+
+    synchronized void invalidate(String filename) {
+        Entry entry = entries.get(filename);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    // Drops everything, spilled files included
+    synchronized void clear() {
+        for (Entry entry : onDisk) {
+            deleteSpilled(entry);
+        }
+        entries.clear();
+        inMemory.clear();
+        onDisk.clear();
+        memoryBytes = 0L;
+        diskBytes = 0L;
+        if (spillFolder != null) {
+            try {
+                Files.deleteIfExists(spillFolder);
+            } catch (IOException e) {
+                // Left behind; it only holds files this cache already deleted
+            }
+            spillFolder = null;
+        }
+    }
+
+    // Moves a file evicted from memory to disk, making room there first; false if it cannot go
+    private boolean spill(Entry entry) {
+        if (entry.size > diskCapacity || !spillFolderReady()) {
+            return false;
+        }
+        while (diskBytes + entry.size > diskCapacity) {
+            Entry victim = onDisk.pollFirst();
+            diskBytes -= victim.size;
+            entries.remove(victim.filename);
+            deleteSpilled(victim);
+        }
+        Path target = spillFolder.resolve(Long.toString(nextSpill++));
+        try {
+            Files.write(target, entry.data);
+        } catch (IOException e) {
+            ClientLogger.getInstance().error("Could not spill " + entry.filename + " to the cache folder: " + e.getMessage());
+            return false;
+        }
+        entry.data = null;
+        entry.spilled = target;
+        onDisk.add(entry);
+        diskBytes += entry.size;
+        return true;
+    }
+
+    private boolean spillFolderReady() {
+        if (spillFolder == null && !spillFailed && diskCapacity > 0L) {
+            try {
+                Files.createDirectories(spillParent);
+                spillFolder = Files.createTempDirectory(spillParent, "client-cache-");
+            } catch (IOException e) {
+                ClientLogger.getInstance().error("Cache folder unavailable, caching in memory only: " + e.getMessage());
+                spillFailed = true;
+            }
+        }
+        return spillFolder != null;
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.filename);
+        if (entry.data != null) {
+            inMemory.remove(entry);
+            memoryBytes -= entry.size;
+        } else {
+            onDisk.remove(entry);
+            diskBytes -= entry.size;
+            deleteSpilled(entry);
+        }
+    }
+
+    private static void deleteSpilled(Entry entry) {
+        try {
+            Files.deleteIfExists(entry.spilled);
+        } catch (IOException e) {
+            // Nothing refers to it any more
+        }
+    }
+}
@@ -1,25 +1,54 @@
 import java.net.*;
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 public class Controller {
 
     private static final List<Integer> dstorePorts = Collections.synchronizedList(new ArrayList<>());
     private static final Map<String, FileInfo> index = new ConcurrentHashMap<>();
     private static final Map<String, Integer> ackCounter = new ConcurrentHashMap<>();
-    private static final Map<String, Socket> clientStoreSockets = new ConcurrentHashMap<>();
+    private static final Map<String, PrintWriter> clientStoreWriters = new ConcurrentHashMap<>();
     private static final Map<String, Integer> removeAckCounter = new ConcurrentHashMap<>();
-    private static final Map<String, Socket> clientRemoveSockets = new ConcurrentHashMap<>();
+    private static final Map<String, PrintWriter> clientRemoveWriters = new ConcurrentHashMap<>();
+    // Files of an MSTORE/MREMOVE still in flight, mapped to the batch that reports them
+    private static final Map<String, Batch> storeBatches = new ConcurrentHashMap<>();
+    private static final Map<String, Batch> removeBatches = new ConcurrentHashMap<>();
     private static final Map<Integer, DstoreInfo> dStores = new ConcurrentHashMap<>();
-    private static final ExecutorService executorService = Executors.newCachedThreadPool(); // Using a thread pool for better management
+    // -Dcontroller.threads=virtual runs connection handlers and timeout waiters on virtual threads
+    private static final ExecutorService executorService = VirtualThreads.newExecutor(
+            System.getProperty("controller.threads", "platform").equals("virtual"), "Controller");
+    // ReentrantLocks rather than monitors, so a virtual thread blocking while it holds one does not pin its carrier
+    private static final ReentrantLock controllerLock = new ReentrantLock();
+    private static final ReentrantLock indexLock = new ReentrantLock();
+    private static final ReentrantLock dstoreLock = new ReentrantLock();
     private static int currentRep;
     private static final ConcurrentHashMap<String, CountDownLatch> removeLatches = new ConcurrentHashMap<>();
     private static final Map<String, CountDownLatch> storeLatches = new ConcurrentHashMap<>();
     private static final Map<Integer, PrintWriter> dstoreWriters = new ConcurrentHashMap<>();
-    // A map to track failed ports for each file
-    private static final Map<String, List<Integer>> failedPortsForFile = new ConcurrentHashMap<>();
     private static final ConcurrentMap<String, Object> fileLocks = new ConcurrentHashMap<>();
+    // Durable copy of the index, only set when -Dcontroller.metadata.dir is given
+    private static MetadataLog metadataLog;
+    // Only set when the rebalance period is positive
+    private static Rebalancer rebalancer;
+    // Block size for CSTORE; each block is placed and replicated as its own index entry
+    private static final long BLOCK_SIZE = Long.getLong("controller.block.size", 64L * 1024 * 1024);
+    // Default code for ESTORE: any 4 of the 4 data and 2 parity shards rebuild the file, at 1.5x its size. Lost
+    // shards are only decoded onto other Dstores when rebalancing is on; without it each loss is permanent
+    private static final int EC_DATA_SHARDS = Integer.getInteger("controller.ec.data", 4);
+    private static final int EC_PARITY_SHARDS = Integer.getInteger("controller.ec.parity", 2);
+    // How long a client may keep using the replica list a LEASE gave it; 0 grants leases that are already over
+    private static final long LEASE_MILLIS = Long.getLong("controller.lease.millis", 10000);
+    // Connections holding an unexpired lease on each file, with when it runs out
+    private static final Map<String, Map<PrintWriter, Long>> leases = new ConcurrentHashMap<>();
+    private static final AtomicInteger leaseGrants = new AtomicInteger();
+    // How LOAD, RELOAD and MLOAD pick among a file's replicas: random (default), p2c or least
+    private static final ReplicaSelector replicaSelector = ReplicaSelector.create(System.getProperty("controller.replica.selector", "random"));
 
     enum FileStatus {
         STORE_IN_PROGRESS,
@@ -36,6 +65,29 @@ public class Controller {
 
         currentRep = rep;
 
+        String metadataDir = System.getProperty("controller.metadata.dir");
+        if (metadataDir != null) {
+            metadataLog = MetadataLog.open(Paths.get(metadataDir), index,
+                    Long.getLong("controller.metadata.snapshotEvery", 1_000_000),
+                    Long.getLong("controller.metadata.snapshotPeriod", 300));
+            recoverIndex();
+        }
+
+        if (reFactor > 0) {
+            rebalancer = new Rebalancer(index, dStores, indexLock, Controller::logPut, rep, timeOut,
+                    Integer.getInteger("controller.rebalance.parallelism", 4));
+            rebalancer.start(reFactor);
+        }
+
+        // -Dcontroller.io=nio switches to the selector front end; the default keeps one thread per connection
+        if (System.getProperty("controller.io", "blocking").equals("nio")) {
+            int loops = Integer.getInteger("controller.loops", Math.min(4, Runtime.getRuntime().availableProcessors()));
+            int workers = Integer.getInteger("controller.workers", 2 * Runtime.getRuntime().availableProcessors());
+            new ControllerSelectorServer(loops, workers, rep, timeOut, reFactor).start(port);
+            System.out.println("Controller running on port " + port + " (nio, " + loops + " loops, " + workers + " workers)");
+            return;
+        }
+
         ServerSocket serverSocket = new ServerSocket(port);
         System.out.println("Controller running on port " + port);
 
@@ -44,6 +96,8 @@ public class Controller {
             while (true) {
                 try {
                     Socket socket = serverSocket.accept();
+                    // Replies are small lines; without this Nagle holds e.g. STORE_COMPLETE until the client's delayed ACK of STORE_TO
+                    socket.setTcpNoDelay(true);
                     executorService.submit(() -> handleConnection(socket, rep, timeOut, reFactor));
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -53,82 +107,192 @@ public class Controller {
     }
 
     private static void handleConnection(Socket socket, int rep, int timeOut, int reFactor) {
+        Connection connection = null;
         try (
+                socket;
                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
         ) {
+            connection = new Connection(socket, out);
             String line;
 
             while ((line = in.readLine()) != null) {
-                System.out.println("Received: " + line);
-
-                if (line.startsWith("JOIN")) {
-                    handleJoin(line, out, socket);
-                } else if (line.startsWith("STORE ")) {
-                    handleStoreRequest(line, out, socket, rep, timeOut);
-                } else if (line.startsWith("STORE_ACK")) {
-                    handleStoreAck(line, rep);
-                } else if (line.startsWith("REMOVE ")) {
-                    handleRemoveRequest(line, out, socket, rep, timeOut);
-                } else if (line.startsWith("REMOVE_ACK")) {
-                    handleRemoveAck(line, rep);
-                } else if (line.startsWith("LIST")) {
-                    handleListRequest(line, rep, out);
-                } else if (line.startsWith("LOAD")) {
-                    handleLoadRequest(line, out);
-                } else if (line.startsWith("ERROR_FILE_DOES_NOT_EXIST")) {
-                    handleErrorFileDoesNotExist(line, rep);
-                } else if (line.startsWith("RELOAD")){
-                    handleReloadRequest(line,out);
-                }
-
+                handleMessage(line, connection, rep, timeOut, reFactor);
             }
         } catch (IOException e) {
             System.out.println("Connection error: " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                connectionClosed(connection);
+            }
+        }
+    }
+
+    /**
+     * Handles one protocol line received on a connection. Shared by the thread per connection
+     * loop above and by {@link ControllerSelectorServer}, which calls it from its worker pool.
+     */
+    static void handleMessage(String line, Connection connection, int rep, int timeOut, int reFactor) {
+        System.out.println("Received: " + line);
+        PrintWriter out = connection.out;
+
+        if (connection.dstorePort != -1) {
+            if (line.equals("HEARTBEAT")) {
+                DstoreInfo info = dStores.get(connection.dstorePort);
+                if (info != null) {
+                    info.updateHeartbeat();
+                }
+                return;
+            } else if (line.startsWith("INVENTORY_END")) {
+                handleInventoryEnd(connection);
+                return;
+            } else if (line.startsWith("INVENTORY")) {
+                handleInventory(line, connection);
+                return;
+            } else if (line.startsWith("LIST")) {
+                if (rebalancer != null) {
+                    rebalancer.handleList(connection.dstorePort, line);
+                }
+                return;
+            } else if (line.equals("REBALANCE_COMPLETE")) {
+                if (rebalancer != null) {
+                    rebalancer.handleComplete(connection.dstorePort);
+                }
+                return;
+            } else if (line.startsWith("REBUILD_COMPLETE") || line.startsWith("REBUILD_FAILED")) {
+                if (rebalancer != null) {
+                    rebalancer.handleRebuilt(line);
+                }
+                return;
+            } else if (line.startsWith("CORRUPT")) {
+                handleCorrupt(line, connection);
+                return;
+            } else if (line.startsWith("LOAD_REPORT")) {
+                handleLoadReport(line, connection);
+                return;
+            }
+        }
+
+        if (line.startsWith("JOIN")) {
+            handleJoin(line, connection);
+        } else if (line.startsWith("STORE_ACK")) {
+            handleStoreAck(line, rep);
+        } else if (line.startsWith("REMOVE_ACK")) {
+            handleRemoveAck(line, rep);
+        } else if (line.startsWith("ERROR_FILE_DOES_NOT_EXIST")) {
+            handleErrorFileDoesNotExist(line, rep);
+        } else if (line.startsWith("REQ ")) {
+            handleTaggedRequest(line, connection, rep, timeOut);
+        } else {
+            handleClientRequest(line, connection, out, rep, timeOut);
+        }
+    }
+
+    private static void handleClientRequest(String line, Connection connection, PrintWriter out, int rep, int timeOut) {
+        if (line.startsWith("MSTORE ")) {
+            handleMultiStoreRequest(line, out, rep, timeOut);
+        } else if (line.startsWith("MLOAD ")) {
+            handleMultiLoadRequest(line, out);
+        } else if (line.startsWith("MREMOVE ")) {
+            handleMultiRemoveRequest(line, out, rep, timeOut);
+        } else if (line.startsWith("CSTORE ")) {
+            handleChunkedStoreRequest(line, out, rep, timeOut);
+        } else if (line.startsWith("CLOAD ")) {
+            handleChunkedLoadRequest(line, out);
+        } else if (line.startsWith("ESTORE ")) {
+            handleErasureCodedStoreRequest(line, out, timeOut);
+        } else if (line.startsWith("ELOAD ")) {
+            handleErasureCodedLoadRequest(line, out);
+        } else if (line.startsWith("STORE ")) {
+            handleStoreRequest(line, out, rep, timeOut);
+        } else if (line.startsWith("REMOVE ")) {
+            handleRemoveRequest(line, out, rep, timeOut);
+        } else if (line.startsWith("LIST")) {
+            handleListRequest(line, rep, out);
+        } else if (line.startsWith("LEASE ")) {
+            handleLeaseRequest(line, out);
+        } else if (line.startsWith("LOAD")) {
+            handleLoadRequest(line, out, connection);
+        } else if (line.startsWith("RELOAD")){
+            handleReloadRequest(line, out, connection);
         }
     }
 
-    private static void handleJoin(String line, PrintWriter out, Socket dstoreSocket) {
+    /**
+     * {@code REQ <id> <request>}: a client request whose every reply line, including late ones such
+     * as STORE_COMPLETE, goes back as {@code RES <id> <reply>}. A client can therefore keep many
+     * requests in flight on one connection and match replies that arrive out of order.
+     */
+    private static void handleTaggedRequest(String line, Connection connection, int rep, int timeOut) {
+        int space = line.indexOf(' ', 4);
+        if (space < 0) {
+            System.out.println("Malformed REQ message: " + line);
+            return;
+        }
+        handleClientRequest(line.substring(space + 1), connection, new TaggedWriter(connection.out, line.substring(4, space)), rep, timeOut);
+    }
+
+    /**
+     * Called once a connection has been closed, after every line it delivered has been handled.
+     */
+    static void connectionClosed(Connection connection) {
+        if (connection.dstorePort != -1) {
+            System.out.println("Dstore " + connection.dstorePort + " disconnected.");
+            handleDstoreCrash(connection.dstorePort);
+            if (rebalancer != null) {
+                rebalancer.requestSoon();
+            }
+        }
+    }
+
+    private static void handleJoin(String line, Connection connection) {
         int dstorePort = Integer.parseInt(line.split(" ")[1]);
 
-        synchronized (dstorePorts) {
+        dstoreLock.lock();
+        try {
             if (!dstorePorts.contains(dstorePort)) {
                 dstorePorts.add(dstorePort);
-                System.out.println(dstorePort + out.toString());
-                System.out.println(dstoreSocket.getPort());
-                dstoreWriters.put(dstorePort,out);
-                System.out.println(dstoreWriters.keySet() + " " +dstoreWriters.get(dstorePort));
-                DstoreInfo dstoreInfo = new DstoreInfo(dstoreSocket, out);
+                dstoreWriters.put(dstorePort, connection.out);
+                DstoreInfo dstoreInfo = new DstoreInfo(connection.socket, connection.out);
+                // A recovered index may already place files on this Dstore
+                for (FileInfo info : index.values()) {
+                    List<Integer> ports = info.getDstores();
+                    if (ports != null && ports.contains(dstorePort)) {
+                        dstoreInfo.addFile(info.getFileSize());
+                    }
+                }
                 dStores.put(dstorePort, dstoreInfo);
+                // Further messages on this connection (STORE_ACK, REMOVE_ACK, HEARTBEAT) come from this Dstore
+                connection.dstorePort = dstorePort;
                 System.out.println("Dstore joined on port: " + dstorePort);
-
-                // Keep this thread alive to receive further messages (like heartbeats)
-                listenToDstore(dstoreSocket, dstorePort);
-                return; // Important! Return to avoid closing socket after JOIN
+                if (rebalancer != null) {
+                    rebalancer.requestSoon();
+                }
             } else {
-                out.println("ERROR_DSTORE_ALREADY_JOINED");
+                connection.out.println("ERROR_DSTORE_ALREADY_JOINED");
             }
+        } finally {
+            dstoreLock.unlock();
         }
     }
 
-    private static void handleStoreRequest(String line, PrintWriter out, Socket socket, int rep, int timeoutMillis) {
+    private static void handleStoreRequest(String line, PrintWriter out, int rep, int timeoutMillis) {
         String[] parts = line.split(" ");
         String filename = parts[1];
-        int fileSize = Integer.parseInt(parts[2]);
+        long fileSize = Long.parseLong(parts[2]);
 
         if (parts.length != 3) {
             System.out.println("Malformed STORE request: " + line);
             return;
         }
 
-        synchronized (dstorePorts) {
-            if (dstorePorts.size() < rep) {
-                out.println("ERROR_NOT_ENOUGH_DSTORES");
-                return;
-            }
+        if (dstorePorts.size() < rep) {
+            out.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
         }
 
-        synchronized (index) {
+        indexLock.lock();
+        try {
             FileInfo fileInfo = index.get(filename);
             if (fileInfo != null && fileInfo.getStatus() != FileStatus.REMOVE_COMPLETE || index.containsKey(filename)) {
                 out.println("ERROR_FILE_ALREADY_EXISTS");
@@ -142,23 +306,25 @@ public class Controller {
 
             // Reserve the Dstores immediately so their fileCount reflects pending storage
             for (int port : selectedPorts) {
-                dStores.get(port).incrementFileCount();
+                dStores.get(port).addFile(fileSize);
             }
 
             fileInfo.setDstores(selectedPorts);
+            logPut(fileInfo);
 
             StringBuilder response = new StringBuilder("STORE_TO");
             for (int port : selectedPorts) {
                 response.append(" ").append(port);
             }
-            out.println(response);
 
+            // Register before replying: with a fast client the Dstores' acks can beat the next line
             CountDownLatch latch = new CountDownLatch(rep);
             storeLatches.put(filename, latch);
             ackCounter.put(filename, 0);
-            clientStoreSockets.put(filename, socket);
+            clientStoreWriters.put(filename, out);
+            out.println(response);
 
-            new Thread(() -> {
+            executorService.submit(() -> {
                 try {
                     boolean completed = latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
                     if (!completed) {
@@ -175,8 +341,10 @@ public class Controller {
                 } finally {
                     storeLatches.remove(filename);
                 }
-            }).start();
+            });
 
+        } finally {
+            indexLock.unlock();
         }
     }
 
@@ -189,28 +357,42 @@ public class Controller {
         }
 
         String filename = parts[1];
+        int expected = isShard(index.get(filename)) ? 1 : rep;
 
         int count = ackCounter.compute(filename, (k, v) -> (v == null) ? 1 : v + 1);
-        System.out.println("ACK received for file: " + filename + " (" + count + "/" + rep + ")");
+        System.out.println("ACK received for file: " + filename + " (" + count + "/" + expected + ")");
 
         CountDownLatch latch = storeLatches.get(filename);
         if (latch != null) {
             latch.countDown();
         }
 
-        if (count >= rep) {
-            Socket clientSocket = clientStoreSockets.remove(filename);
-            if (clientSocket != null && !clientSocket.isClosed()) {
-                try {
-                    PrintWriter clientOut = new PrintWriter(clientSocket.getOutputStream(), true);
-                    FileInfo fileInfo = index.get(filename);
-                    if (fileInfo != null) {
+        if (count >= expected) {
+            PrintWriter clientOut = clientStoreWriters.remove(filename);
+            if (clientOut != null) {
+                FileInfo fileInfo = index.get(filename);
+                if (fileInfo != null) {
+                    fileInfo.setStatus(FileStatus.STORE_COMPLETE);
+                    // The client only hears STORE_COMPLETE once that state is durable
+                    logPut(fileInfo).thenRun(() -> {
                         clientOut.println("STORE_COMPLETE");
-                        fileInfo.setStatus(FileStatus.STORE_COMPLETE);
-                    }
-                } catch (IOException e) {
-                    System.out.println("Error responding to client for " + filename);
-                    index.remove(filename);
+                        if (clientOut.checkError()) {
+                            System.out.println("Error responding to client for " + filename);
+                            index.remove(filename);
+                            logDelete(filename);
+                        }
+                    });
+                }
+            }
+            Batch batch = storeBatches.remove(filename);
+            if (batch != null) {
+                FileInfo fileInfo = index.get(filename);
+                if (fileInfo != null) {
+                    fileInfo.setStatus(FileStatus.STORE_COMPLETE);
+                    batch.done(filename, "STORE_COMPLETE", logPut(fileInfo));
+                } else {
+                    // Every replica's Dstore crashed before the last ack was handled
+                    batch.done(filename, "ERROR_FILE_DOES_NOT_EXIST", CompletableFuture.completedFuture(null));
                 }
             }
             ackCounter.remove(filename);
@@ -221,71 +403,96 @@ public class Controller {
 
 
 
-    private static synchronized void handleRemoveRequest(String line, PrintWriter clientOut, Socket clientSocket, int rep, int timeoutMillis) {
-        String[] parts = line.split(" ");
-        if (parts.length != 2) {
-            System.out.println("ERROR_MALFORMED_REQUEST");
-            return;
-        }
+    private static void handleRemoveRequest(String line, PrintWriter clientOut, int rep, int timeoutMillis) {
+        List<Map.Entry<PrintWriter, String>> notices = List.of();
+        controllerLock.lock();
+        try {
+            String[] parts = line.split(" ");
+            if (parts.length != 2) {
+                System.out.println("ERROR_MALFORMED_REQUEST");
+                return;
+            }
 
-        String filename = parts[1];
+            String filename = parts[1];
 
-        synchronized (dstorePorts) {
             if (dstorePorts.size() < rep) {
                 clientOut.println("ERROR_NOT_ENOUGH_DSTORES");
                 return;
             }
-        }
 
-        FileInfo fileInfo;
-        List<Integer> dstorePortsWithFile;
-        synchronized (index) {
-            fileInfo = index.get(filename);
-            if (fileInfo == null || fileInfo.getStatus() != FileStatus.STORE_COMPLETE) {
-                clientOut.println("ERROR_FILE_DOES_NOT_EXIST");
-                return;
+            FileInfo fileInfo;
+            List<Integer> dstorePortsWithFile;
+            Map<Integer, StringBuilder> blockRemoves = null;
+            indexLock.lock();
+            try {
+                fileInfo = index.get(filename);
+                if (fileInfo == null || fileInfo.getStatus() != FileStatus.STORE_COMPLETE || fileInfo.getParent() != null) {
+                    clientOut.println("ERROR_FILE_DOES_NOT_EXIST");
+                    return;
+                }
+
+                dstorePortsWithFile = fileInfo.getDstores();
+                if (fileInfo.getBlockSize() > 0) {
+                    blockRemoves = new HashMap<>();
+                    removeBlocks(fileInfo, timeoutMillis, blockRemoves, (result, logged) -> logged.thenRun(() -> {
+                        if (result.equals("REMOVE_COMPLETE")) {
+                            clientOut.println("REMOVE_COMPLETE");
+                        }
+                    }));
+                } else {
+                    fileInfo.setStatus(FileStatus.REMOVE_IN_PROGRESS);
+                    logPut(fileInfo);
+                    notices = revokeLeases(fileInfo, "INVALIDATE");
+                }
+            } finally {
+                indexLock.unlock();
             }
 
-            fileInfo.setStatus(FileStatus.REMOVE_IN_PROGRESS);
-            dstorePortsWithFile = fileInfo.getDstores();
-        }
+            if (blockRemoves != null) {
+                sendRemoves(blockRemoves);
+                return;
+            }
 
-        // Track acknowledgements and client socket
-        removeAckCounter.put(filename, 0);
-        clientRemoveSockets.put(filename, clientSocket);
+            // Track acknowledgements and client connection
+            removeAckCounter.put(filename, 0);
+            clientRemoveWriters.put(filename, clientOut);
 
-        // Set up latch for timeout
-        CountDownLatch latch = new CountDownLatch(rep);
-        removeLatches.put(filename, latch);
-        System.out.println("Sending REMOVE to dstores: " + dstorePortsWithFile);
+            // Set up latch for timeout
+            CountDownLatch latch = new CountDownLatch(rep);
+            removeLatches.put(filename, latch);
+            System.out.println("Sending REMOVE to dstores: " + dstorePortsWithFile);
+
+            // Send REMOVE to each Dstore
+            for (int port : dstorePortsWithFile) {
+                executorService.submit(() -> {
+                    PrintWriter dstoreOut = dstoreWriters.get(port);{
+                       dstoreOut.println("REMOVE " + filename);
+                   }
+                });
+            }
 
-        // Send REMOVE to each Dstore
-        for (int port : dstorePortsWithFile) {
+            // Wait for the latch with a timeout
             executorService.submit(() -> {
-                PrintWriter dstoreOut = dstoreWriters.get(port);{
-                   dstoreOut.println("REMOVE " + filename);
-               }
-            });
-        }
+                try {
+                    boolean completed = latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
 
-        // Wait for the latch with a timeout
-        new Thread(() -> {
-            try {
-                boolean completed = latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+                    if (!completed) {
+                        System.out.println("REMOVE timed out for file: " + filename);
+                        // No further action per spec, but clean up temporary state
+                        removeAckCounter.remove(filename);
+                        removeLatches.remove(filename);
+                        clientRemoveWriters.remove(filename);
+                        // Leave index entry in REMOVE_IN_PROGRESS for rebalancing
+                    }
 
-                if (!completed) {
-                    System.out.println("REMOVE timed out for file: " + filename);
-                    // No further action per spec, but clean up temporary state
-                    removeAckCounter.remove(filename);
-                    removeLatches.remove(filename);
-                    clientRemoveSockets.remove(filename);
-                    // Leave index entry in REMOVE_IN_PROGRESS for rebalancing
+                } catch (InterruptedException ignored) {
+                    System.out.println("we got interupted");
                 }
-
-            } catch (InterruptedException ignored) {
-                System.out.println("we got interupted");
-            }
-        }).start();
+            });
+        } finally {
+            controllerLock.unlock();
+            sendNotices(notices);
+        }
     }
 
 
@@ -299,6 +506,12 @@ public class Controller {
             return;
         }
 
+        FileInfo removing = index.get(filename);
+        if (removing == null || removing.getStatus() != FileStatus.REMOVE_IN_PROGRESS) {
+            // Ack for a stale replica deleted during inventory reconciliation, not a client REMOVE
+            return;
+        }
+
         int count = removeAckCounter.compute(filename, (k, v) -> (v == null) ? 1 : v + 1);
 
         // Count down the latch if present
@@ -307,32 +520,749 @@ public class Controller {
             latch.countDown();
         }
 
-        int dstorefileFailures = rep - index.get(filename).dstores.size();
+        int dstorefileFailures = rep - removing.dstores.size();
 
-        if (count + dstorefileFailures >= rep) {
-            FileInfo fileInfo = index.get(filename);
-            if (fileInfo != null) {
-                List<Integer> dStoresWithFile = fileInfo.getDstores();
-                for (int currentPort : dStoresWithFile) {
-                    dStores.get(currentPort).decrementFileCount();
+        // Acks from different Dstores are handled on different threads; only the one that takes the
+        // entry out of the index finishes the remove
+        if (count + dstorefileFailures >= rep && index.remove(filename, removing)) {
+            for (int currentPort : removing.getDstores()) {
+                DstoreInfo dstoreInfo = dStores.get(currentPort);
+                if (dstoreInfo != null) {
+                    dstoreInfo.removeFile(removing.getFileSize());
                 }
-                System.out.println("fileRemoved");
-                index.remove(filename);
-                removeAckCounter.remove(filename);
             }
+            System.out.println("fileRemoved");
+            removeAckCounter.remove(filename);
 
-            Socket clientSocket = clientRemoveSockets.remove(filename);
-            if (clientSocket != null && !clientSocket.isClosed()) {
-                try {
-                    PrintWriter clientOut = new PrintWriter(clientSocket.getOutputStream(), true);
+            PrintWriter clientOut = clientRemoveWriters.remove(filename);
+            CompletableFuture<Void> logged = logDelete(filename);
+            logged.thenRun(() -> {
+                if (clientOut != null) {
                     clientOut.println("REMOVE_COMPLETE");
-                } catch (IOException e) {
-                    System.out.println("Error responding to client for REMOVE " + filename);
+                    if (clientOut.checkError()) {
+                        System.out.println("Error responding to client for REMOVE " + filename);
+                    }
                 }
+            });
+            Batch batch = removeBatches.remove(filename);
+            if (batch != null) {
+                batch.done(filename, "REMOVE_COMPLETE", logged);
             }
         }
     }
 
+    /**
+     * {@code MSTORE <file> <size> <file> <size> ...}: places every file of the batch in one pass
+     * under indexLock and answers {@code MSTORE_TO} with, for each file in turn, either its Dstores
+     * (comma separated) or the error a single STORE would have got. Once every accepted file has
+     * its acks, or the acks stop coming for a whole timeout, {@code MSTORE_COMPLETE} gives each
+     * file's outcome.
+     */
+    private static void handleMultiStoreRequest(String line, PrintWriter out, int rep, int timeoutMillis) {
+        String[] parts = line.split(" ");
+        if (parts.length < 3 || parts.length % 2 == 0) {
+            System.out.println("Malformed MSTORE request: " + line);
+            return;
+        }
+        long[] sizes = new long[parts.length / 2];
+        try {
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = Long.parseLong(parts[2 * i + 2]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Malformed MSTORE request: " + line);
+            return;
+        }
+
+        if (dstorePorts.size() < rep) {
+            out.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
+        }
+
+        Batch batch = new Batch(out, "MSTORE_COMPLETE");
+        List<String> accepted = new ArrayList<>();
+        StringBuilder response = new StringBuilder("MSTORE_TO");
+        indexLock.lock();
+        try {
+            // One snapshot of the Dstores' counts, kept up to date locally as the batch is placed
+            Map<Integer, Integer> counts = new HashMap<>();
+            for (Map.Entry<Integer, DstoreInfo> entry : dStores.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().getFileCount());
+            }
+
+            for (int i = 0; i < sizes.length; i++) {
+                String filename = parts[2 * i + 1];
+                if (batch.results.containsKey(filename)) {
+                    continue;
+                }
+                if (index.containsKey(filename)) {
+                    batch.results.put(filename, "ERROR_FILE_ALREADY_EXISTS");
+                    response.append(' ').append(filename).append(" ERROR_FILE_ALREADY_EXISTS");
+                    continue;
+                }
+
+                FileInfo fileInfo = new FileInfo(filename, sizes[i]);
+                List<Integer> selectedPorts = leastLoaded(counts, rep);
+                for (int port : selectedPorts) {
+                    counts.merge(port, 1, Integer::sum);
+                    dStores.get(port).addFile(sizes[i]);
+                }
+                fileInfo.setDstores(selectedPorts);
+                index.put(filename, fileInfo);
+                logPut(fileInfo);
+
+                batch.results.put(filename, null);
+                accepted.add(filename);
+                ackCounter.put(filename, 0);
+                storeBatches.put(filename, batch);
+                response.append(' ').append(filename).append(' ');
+                for (int j = 0; j < selectedPorts.size(); j++) {
+                    response.append(j == 0 ? "" : ",").append(selectedPorts.get(j));
+                }
+            }
+        } finally {
+            indexLock.unlock();
+        }
+
+        batch.start(accepted.size());
+        out.println(response);
+        System.out.println("MSTORE placed " + accepted.size() + " of " + batch.results.size() + " files");
+
+        executorService.submit(() -> {
+            List<String> timedOut = batch.awaitProgress(timeoutMillis, accepted, storeBatches);
+            for (String filename : timedOut) {
+                System.out.println("STORE timed out for file: " + filename);
+                ackCounter.remove(filename);
+            }
+            batch.reply();
+        });
+    }
+
+    /**
+     * {@code MLOAD <file> <file> ...}: answers {@code MLOAD_FROM} with, for each file,
+     * {@code <size>:<port>,<port>...} listing every live Dstore holding it in random order, or
+     * {@code ERROR_FILE_DOES_NOT_EXIST}. The client works down a file's list itself instead of
+     * sending RELOAD.
+     */
+    private static void handleMultiLoadRequest(String line, PrintWriter out) {
+        String[] parts = line.split(" ");
+        StringBuilder response = new StringBuilder("MLOAD_FROM");
+        Set<String> seen = new HashSet<>();
+        indexLock.lock();
+        try {
+            for (int i = 1; i < parts.length; i++) {
+                String filename = parts[i];
+                if (!seen.add(filename)) {
+                    continue;
+                }
+                response.append(' ').append(filename).append(' ');
+
+                FileInfo fileInfo = index.get(filename);
+                List<Integer> availablePorts = new ArrayList<>();
+                if (fileInfo != null && fileInfo.getStatus() == FileStatus.STORE_COMPLETE && fileInfo.getDstores() != null) {
+                    availablePorts.addAll(fileInfo.getDstores());
+                    availablePorts.retainAll(dStores.keySet());
+                }
+                if (availablePorts.isEmpty()) {
+                    response.append("ERROR_FILE_DOES_NOT_EXIST");
+                    continue;
+                }
+
+                // The client tries the ports in order: the selector's pick first, then the rest at random
+                Collections.shuffle(availablePorts);
+                Collections.swap(availablePorts, 0, availablePorts.indexOf(replicaSelector.choose(availablePorts)));
+                response.append(fileInfo.getFileSize()).append(':');
+                for (int j = 0; j < availablePorts.size(); j++) {
+                    response.append(j == 0 ? "" : ",").append(availablePorts.get(j));
+                }
+            }
+        } finally {
+            indexLock.unlock();
+        }
+        out.println(response);
+    }
+
+    /**
+     * {@code MREMOVE <file> <file> ...}: marks every file of the batch for removal in one pass
+     * under indexLock, sends each Dstore all of its REMOVEs in one write, and answers
+     * {@code MREMOVE_COMPLETE} with each file's outcome once the acks are in or stop coming for a
+     * whole timeout.
+     */
+    private static void handleMultiRemoveRequest(String line, PrintWriter out, int rep, int timeoutMillis) {
+        String[] parts = line.split(" ");
+        if (dstorePorts.size() < rep) {
+            out.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
+        }
+
+        Batch batch = new Batch(out, "MREMOVE_COMPLETE");
+        List<String> accepted = new ArrayList<>();
+        List<FileInfo> chunked = new ArrayList<>();
+        Map<Integer, StringBuilder> removesByDstore = new HashMap<>();
+        List<Map.Entry<PrintWriter, String>> notices = new ArrayList<>();
+        controllerLock.lock();
+        try {
+            indexLock.lock();
+            try {
+                for (int i = 1; i < parts.length; i++) {
+                    String filename = parts[i];
+                    if (batch.results.containsKey(filename)) {
+                        continue;
+                    }
+                    FileInfo fileInfo = index.get(filename);
+                    if (fileInfo == null || fileInfo.getStatus() != FileStatus.STORE_COMPLETE || fileInfo.getParent() != null) {
+                        batch.results.put(filename, "ERROR_FILE_DOES_NOT_EXIST");
+                        continue;
+                    }
+                    if (fileInfo.getBlockSize() > 0) {
+                        batch.results.put(filename, null);
+                        chunked.add(fileInfo);
+                        continue;
+                    }
+
+                    fileInfo.setStatus(FileStatus.REMOVE_IN_PROGRESS);
+                    logPut(fileInfo);
+                    notices.addAll(revokeLeases(fileInfo, "INVALIDATE"));
+                    batch.results.put(filename, null);
+                    accepted.add(filename);
+                    removeAckCounter.put(filename, 0);
+                    removeBatches.put(filename, batch);
+                    for (int port : fileInfo.getDstores()) {
+                        removesByDstore.computeIfAbsent(port, k -> new StringBuilder())
+                                .append("REMOVE ").append(filename).append('\n');
+                    }
+                }
+
+                // A chunked file reports into this batch once all of its blocks are gone
+                batch.start(accepted.size() + chunked.size());
+                for (FileInfo fileInfo : chunked) {
+                    String filename = fileInfo.getFilename();
+                    removeBlocks(fileInfo, timeoutMillis, removesByDstore, (result, logged) -> batch.done(filename, result, logged));
+                }
+            } finally {
+                indexLock.unlock();
+            }
+        } finally {
+            controllerLock.unlock();
+        }
+
+        System.out.println("MREMOVE removing " + accepted.size() + " of " + batch.results.size() + " files");
+        sendNotices(notices);
+        sendRemoves(removesByDstore);
+
+        executorService.submit(() -> {
+            List<String> timedOut = batch.awaitProgress(timeoutMillis, accepted, removeBatches);
+            for (String filename : timedOut) {
+                System.out.println("REMOVE timed out for file: " + filename);
+                removeAckCounter.remove(filename);
+            }
+            batch.reply();
+        });
+    }
+
+    private static void sendRemoves(Map<Integer, StringBuilder> removesByDstore) {
+        for (Map.Entry<Integer, StringBuilder> entry : removesByDstore.entrySet()) {
+            PrintWriter dstoreOut = dstoreWriters.get(entry.getKey());
+            if (dstoreOut != null) {
+                dstoreOut.print(entry.getValue());
+                dstoreOut.flush();
+            }
+        }
+    }
+
+    /**
+     * {@code CSTORE <file> <size>}: stores a file as blocks of controller.block.size bytes. Each
+     * block is an index entry of its own, {@code <file>#<n>}, placed on its own least loaded
+     * Dstores, so one large file spreads over the whole cluster and the rebalancer moves and
+     * re-replicates blocks like any other file. The reply is
+     * {@code CSTORE_TO <block size> <block> <port>,<port> ...}; the client stores each block with a
+     * normal Dstore STORE and hears STORE_COMPLETE once every block has its acks.
+     */
+    private static void handleChunkedStoreRequest(String line, PrintWriter out, int rep, int timeoutMillis) {
+        String[] parts = line.split(" ");
+        long fileSize;
+        try {
+            fileSize = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+        } catch (NumberFormatException e) {
+            fileSize = -1;
+        }
+        if (fileSize < 0) {
+            System.out.println("Malformed CSTORE request: " + line);
+            return;
+        }
+
+        if (dstorePorts.size() < rep) {
+            out.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
+        }
+
+        String filename = parts[1];
+        FileInfo file = new FileInfo(filename, fileSize);
+        file.setBlockSize(BLOCK_SIZE);
+        file.setDstores(new ArrayList<>());
+        Batch batch = new Batch(out, "STORE_COMPLETE");
+        List<String> accepted = new ArrayList<>();
+        StringBuilder response = new StringBuilder("CSTORE_TO ").append(BLOCK_SIZE);
+        indexLock.lock();
+        try {
+            if (partsExist(file)) {
+                out.println("ERROR_FILE_ALREADY_EXISTS");
+                return;
+            }
+
+            Map<Integer, Integer> counts = new HashMap<>();
+            for (Map.Entry<Integer, DstoreInfo> entry : dStores.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().getFileCount());
+            }
+            index.put(filename, file);
+            logPut(file);
+
+            for (int block = 0; block < file.getBlockCount(); block++) {
+                long blockLength = Math.min(BLOCK_SIZE, fileSize - block * BLOCK_SIZE);
+                List<Integer> selectedPorts = leastLoaded(counts, rep);
+                for (int port : selectedPorts) {
+                    counts.merge(port, 1, Integer::sum);
+                }
+                addPart(file, block, blockLength, selectedPorts, batch, accepted, response);
+            }
+        } finally {
+            indexLock.unlock();
+        }
+
+        batch.start(accepted.size());
+        out.println(response);
+        System.out.println("CSTORE placed " + filename + " as " + accepted.size() + " blocks");
+        awaitParts(file, batch, accepted, timeoutMillis);
+    }
+
+    /**
+     * {@code ESTORE <file> <size> [<data shards> <parity shards>]}: stores a file erasure coded
+     * instead of replicated. The client cuts the file into k equal data shards, zero padded, and
+     * computes m Reed-Solomon parity shards; any k of them rebuild the file. Each shard is an index
+     * entry {@code <file>#<n>} with a single copy, and all k+m go to distinct Dstores, least loaded
+     * first, so the file survives m lost Dstores at (k+m)/k times its size. Without a code in the
+     * request controller.ec.data and controller.ec.parity apply. The reply is
+     * {@code ESTORE_TO <k> <m> <shard size> <shard> <port> ...}, then STORE_COMPLETE as for CSTORE.
+     */
+    private static void handleErasureCodedStoreRequest(String line, PrintWriter out, int timeoutMillis) {
+        String[] parts = line.split(" ");
+        long fileSize;
+        int dataShards;
+        int parityShards;
+        try {
+            fileSize = parts.length == 3 || parts.length == 5 ? Long.parseLong(parts[2]) : -1;
+            dataShards = parts.length == 5 ? Integer.parseInt(parts[3]) : EC_DATA_SHARDS;
+            parityShards = parts.length == 5 ? Integer.parseInt(parts[4]) : EC_PARITY_SHARDS;
+        } catch (NumberFormatException e) {
+            fileSize = -1;
+            dataShards = 0;
+            parityShards = 0;
+        }
+        if (fileSize < 0 || dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256) {
+            System.out.println("Malformed ESTORE request: " + line);
+            return;
+        }
+
+        if (dStores.size() < dataShards + parityShards) {
+            out.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
+        }
+
+        String filename = parts[1];
+        // Never zero, so an empty file still has shards and reads as a file with parts
+        long shardSize = Math.max(1, (fileSize + dataShards - 1) / dataShards);
+        FileInfo file = new FileInfo(filename, fileSize);
+        file.setBlockSize(shardSize);
+        file.setShards(dataShards, parityShards);
+        file.setDstores(new ArrayList<>());
+        Batch batch = new Batch(out, "STORE_COMPLETE");
+        List<String> accepted = new ArrayList<>();
+        StringBuilder response = new StringBuilder("ESTORE_TO ").append(dataShards).append(' ').append(parityShards)
+                .append(' ').append(shardSize);
+        indexLock.lock();
+        try {
+            if (partsExist(file)) {
+                out.println("ERROR_FILE_ALREADY_EXISTS");
+                return;
+            }
+
+            List<Integer> selectedPorts = getLeastLoadedDstores(dataShards + parityShards);
+            index.put(filename, file);
+            logPut(file);
+
+            for (int shard = 0; shard < file.getBlockCount(); shard++) {
+                addPart(file, shard, shardSize, List.of(selectedPorts.get(shard)), batch, accepted, response);
+            }
+        } finally {
+            indexLock.unlock();
+        }
+
+        batch.start(accepted.size());
+        out.println(response);
+        System.out.println("ESTORE placed " + filename + " as " + dataShards + "+" + parityShards + " shards");
+        awaitParts(file, batch, accepted, timeoutMillis);
+    }
+
+    // A shard of an erasure coded file is stored once, on a Dstore of its own
+    private static boolean isShard(FileInfo file) {
+        if (file == null || file.getParent() == null) {
+            return false;
+        }
+        FileInfo parent = index.get(file.getParent());
+        return parent != null && parent.getDataShards() > 0;
+    }
+
+    // Whether the file, or any block or shard it would have, is already in the index
+    private static boolean partsExist(FileInfo file) {
+        if (index.containsKey(file.getFilename())) {
+            return true;
+        }
+        for (int part = 0; part < file.getBlockCount(); part++) {
+            if (index.containsKey(FileInfo.blockName(file.getFilename(), part))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds block or shard {@code part} of {@code file} to the index on {@code ports}, expects its
+     * STORE_ACKs in {@code batch} and appends {@code <part> <port>,<port>} to the reply. Caller holds
+     * indexLock.
+     */
+    private static void addPart(FileInfo file, int part, long length, List<Integer> ports, Batch batch,
+                                List<String> accepted, StringBuilder response) {
+        String partName = FileInfo.blockName(file.getFilename(), part);
+        FileInfo partInfo = new FileInfo(partName, length);
+        partInfo.setParent(file.getFilename());
+        for (int port : ports) {
+            dStores.get(port).addFile(length);
+        }
+        partInfo.setDstores(new ArrayList<>(ports));
+        index.put(partName, partInfo);
+        logPut(partInfo);
+
+        batch.results.put(partName, null);
+        accepted.add(partName);
+        ackCounter.put(partName, 0);
+        storeBatches.put(partName, batch);
+        response.append(' ').append(partName).append(' ');
+        for (int j = 0; j < ports.size(); j++) {
+            response.append(j == 0 ? "" : ",").append(ports.get(j));
+        }
+    }
+
+    // Completes the file and tells the client once every part has its acks
+    private static void awaitParts(FileInfo file, Batch batch, List<String> accepted, int timeoutMillis) {
+        executorService.submit(() -> {
+            List<String> timedOut = batch.awaitProgress(timeoutMillis, accepted, storeBatches);
+            for (String partName : timedOut) {
+                ackCounter.remove(partName);
+            }
+            if (!batch.allSucceeded("STORE_COMPLETE")) {
+                // As with a single STORE, the file is left in progress and the client hears nothing
+                System.out.println("STORE timed out for file: " + file.getFilename());
+                return;
+            }
+            file.setStatus(FileStatus.STORE_COMPLETE);
+            CompletableFuture.allOf(batch.logged(), logPut(file)).thenRun(() -> {
+                batch.out.println("STORE_COMPLETE");
+                if (batch.out.checkError()) {
+                    System.out.println("Error responding to client for " + file.getFilename());
+                }
+            });
+        });
+    }
+
+    /**
+     * {@code CLOAD <file>}: the block map of a file, {@code CLOAD_FROM <size> <block size>} then
+     * each block with its live Dstores in random order, or {@code -} for a block with none. A file
+     * stored with a plain STORE comes back as a single block named after the file itself.
+     */
+    private static void handleChunkedLoadRequest(String line, PrintWriter out) {
+        String filename = line.split(" ")[1];
+        indexLock.lock();
+        try {
+            FileInfo file = index.get(filename);
+            if (file == null || file.getStatus() != FileStatus.STORE_COMPLETE || file.getParent() != null
+                    || file.getDataShards() > 0) {
+                out.println("ERROR_FILE_DOES_NOT_EXIST");
+                return;
+            }
+
+            long blockSize = file.getBlockSize() > 0 ? file.getBlockSize() : Math.max(1, file.getFileSize());
+            StringBuilder response = new StringBuilder("CLOAD_FROM ").append(file.getFileSize()).append(' ').append(blockSize);
+            if (file.getBlockSize() > 0) {
+                appendParts(file, response);
+            } else {
+                appendPart(filename, file, response);
+            }
+            out.println(response);
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * {@code ELOAD <file>}: the shard map of an erasure coded file,
+     * {@code ELOAD_FROM <size> <k> <m> <shard size>} then each shard, data shards first, with its
+     * live Dstore or {@code -}. The client reads any k shards it can reach and decodes the rest.
+     */
+    private static void handleErasureCodedLoadRequest(String line, PrintWriter out) {
+        String filename = line.split(" ")[1];
+        indexLock.lock();
+        try {
+            FileInfo file = index.get(filename);
+            if (file == null || file.getStatus() != FileStatus.STORE_COMPLETE || file.getDataShards() == 0) {
+                out.println("ERROR_FILE_DOES_NOT_EXIST");
+                return;
+            }
+
+            StringBuilder response = new StringBuilder("ELOAD_FROM ").append(file.getFileSize())
+                    .append(' ').append(file.getDataShards()).append(' ').append(file.getParityShards())
+                    .append(' ').append(file.getBlockSize());
+            appendParts(file, response);
+            out.println(response);
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    // Caller holds indexLock
+    private static void appendParts(FileInfo file, StringBuilder response) {
+        for (int part = 0; part < file.getBlockCount(); part++) {
+            String partName = FileInfo.blockName(file.getFilename(), part);
+            appendPart(partName, index.get(partName), response);
+        }
+    }
+
+    // A part lost with every Dstore that held it has no index entry and is sent as "-"
+    private static void appendPart(String partName, FileInfo partInfo, StringBuilder response) {
+        List<Integer> availablePorts = new ArrayList<>();
+        if (partInfo != null && partInfo.getDstores() != null) {
+            availablePorts.addAll(partInfo.getDstores());
+            availablePorts.retainAll(dStores.keySet());
+        }
+        Collections.shuffle(availablePorts);
+        response.append(' ').append(partName).append(' ');
+        if (availablePorts.isEmpty()) {
+            response.append('-');
+        }
+        for (int j = 0; j < availablePorts.size(); j++) {
+            response.append(j == 0 ? "" : ",").append(availablePorts.get(j));
+        }
+    }
+
+    /**
+     * Starts removing every block of a chunked file, or shard of an erasure coded one, as one
+     * batch; the file itself leaves the index once all of them are gone. {@code onDone} gets
+     * REMOVE_COMPLETE or ERROR_TIMEOUT and the log write to wait for. The REMOVEs are added to {@code removesByDstore} for the caller to send.
+     * Caller holds indexLock and has checked the file is complete.
+     */
+    private static void removeBlocks(FileInfo file, int timeoutMillis, Map<Integer, StringBuilder> removesByDstore,
+                                     BiConsumer<String, CompletableFuture<Void>> onDone) {
+        file.setStatus(FileStatus.REMOVE_IN_PROGRESS);
+        logPut(file);
+
+        Batch blocks = new Batch(null, null);
+        List<String> accepted = new ArrayList<>();
+        for (int block = 0; block < file.getBlockCount(); block++) {
+            String blockName = FileInfo.blockName(file.getFilename(), block);
+            FileInfo blockInfo = index.get(blockName);
+            if (blockInfo == null) {
+                continue; // lost along with every Dstore that held it
+            }
+            blockInfo.setStatus(FileStatus.REMOVE_IN_PROGRESS);
+            logPut(blockInfo);
+            blocks.results.put(blockName, null);
+            accepted.add(blockName);
+            removeAckCounter.put(blockName, 0);
+            removeBatches.put(blockName, blocks);
+            for (int port : blockInfo.getDstores()) {
+                removesByDstore.computeIfAbsent(port, k -> new StringBuilder())
+                        .append("REMOVE ").append(blockName).append('\n');
+            }
+        }
+        blocks.start(accepted.size());
+
+        executorService.submit(() -> {
+            List<String> timedOut = blocks.awaitProgress(timeoutMillis, accepted, removeBatches);
+            for (String blockName : timedOut) {
+                removeAckCounter.remove(blockName);
+            }
+            if (!timedOut.isEmpty()) {
+                // Left in REMOVE_IN_PROGRESS, as a single REMOVE that times out is
+                System.out.println("REMOVE timed out for file: " + file.getFilename());
+                onDone.accept("ERROR_TIMEOUT", blocks.logged());
+                return;
+            }
+            index.remove(file.getFilename(), file);
+            onDone.accept("REMOVE_COMPLETE", CompletableFuture.allOf(blocks.logged(), logDelete(file.getFilename())));
+        });
+    }
+
+
+    /**
+     * Reconciles one batch of a joining Dstore's inventory against the index. Files the index knows
+     * get this replica back. Unknown files are adopted when the index is not durable (the
+     * Controller itself restarted empty); with a durable index they, like copies whose size no
+     * longer matches, are leftovers of a missed REMOVE and are deleted.
+     */
+    private static void handleInventory(String line, Connection connection) {
+        String[] parts = line.split(" ");
+        int port = connection.dstorePort;
+        DstoreInfo dstoreInfo = dStores.get(port);
+        List<String> stale = new ArrayList<>();
+
+        indexLock.lock();
+        try {
+            for (int i = 1; i + 1 < parts.length; i += 2) {
+                String filename = parts[i];
+                long size = Long.parseLong(parts[i + 1]);
+                connection.reportedFiles.add(filename);
+
+                FileInfo info = index.get(filename);
+                if (info == null) {
+                    if (metadataLog != null) {
+                        stale.add(filename);
+                        continue;
+                    }
+                    info = new FileInfo(filename, size);
+                    info.setStatus(FileStatus.STORE_COMPLETE);
+                    info.setDstores(new ArrayList<>(List.of(port)));
+                    index.put(filename, info);
+                    dstoreInfo.addFile(size);
+                    logPut(info);
+                } else if (info.getStatus() == FileStatus.STORE_COMPLETE) {
+                    if (info.getFileSize() != size) {
+                        stale.add(filename);
+                        continue;
+                    }
+                    synchronized (info) {
+                        if (!info.getDstores().contains(port)) {
+                            List<Integer> ports = new ArrayList<>(info.getDstores());
+                            ports.add(port);
+                            info.setDstores(ports);
+                            dstoreInfo.addFile(size);
+                            logPut(info);
+                        }
+                    }
+                }
+            }
+        } finally {
+            indexLock.unlock();
+        }
+
+        for (String filename : stale) {
+            connection.out.println("REMOVE " + filename);
+        }
+        System.out.println("Dstore " + port + " reported " + (parts.length / 2) + " files, " + stale.size() + " stale");
+    }
+
+    /**
+     * The Dstore has reported everything it holds: any replica the index still places on it that
+     * was not in the report is gone.
+     */
+    private static void handleInventoryEnd(Connection connection) {
+        int port = connection.dstorePort;
+        DstoreInfo dstoreInfo = dStores.get(port);
+        int lost = 0;
+
+        indexLock.lock();
+        try {
+            for (FileInfo info : index.values()) {
+                synchronized (info) {
+                    List<Integer> ports = info.getDstores();
+                    if (info.getStatus() == FileStatus.STORE_COMPLETE && ports != null && ports.contains(port)
+                            && !connection.reportedFiles.contains(info.getFilename())) {
+                        List<Integer> remaining = new ArrayList<>(ports);
+                        remaining.remove((Integer) port);
+                        info.setDstores(remaining);
+                        dstoreInfo.removeFile(info.getFileSize());
+                        logPut(info);
+                        lost++;
+                    }
+                }
+            }
+        } finally {
+            indexLock.unlock();
+        }
+        connection.reportedFiles.clear();
+        if (lost > 0) {
+            System.out.println("Dstore " + port + " no longer holds " + lost + " files the index expected");
+        }
+    }
+
+    /**
+     * {@code CORRUPT <file>}: the Dstore's scrubber found its copy damaged and deleted it. LOAD stops
+     * sending clients there, and a rebalance soon copies a good replica back up to the replication
+     * factor.
+     */
+    private static void handleCorrupt(String line, Connection connection) {
+        String[] parts = line.split(" ");
+        if (parts.length != 2) {
+            System.out.println("Malformed CORRUPT message: " + line);
+            return;
+        }
+        int port = connection.dstorePort;
+        FileInfo info = index.get(parts[1]);
+        List<Map.Entry<PrintWriter, String>> notices = List.of();
+        if (info != null) {
+            synchronized (info) {
+                List<Integer> ports = info.getDstores();
+                if (ports != null && ports.contains(port)) {
+                    List<Integer> remaining = new ArrayList<>(ports);
+                    remaining.remove((Integer) port);
+                    info.setDstores(remaining);
+                    DstoreInfo dstoreInfo = dStores.get(port);
+                    if (dstoreInfo != null) {
+                        dstoreInfo.removeFile(info.getFileSize());
+                    }
+                    logPut(info);
+                    notices = revokeLeases(info);
+                }
+            }
+        }
+        sendNotices(notices);
+        System.out.println("Dstore " + port + " dropped a corrupt copy of " + parts[1]);
+        if (rebalancer != null) {
+            rebalancer.requestSoon();
+        }
+    }
+
+    /**
+     * {@code LOAD_REPORT <active> <latency micros>}: how many LOAD_DATA transfers the Dstore has in
+     * progress and the EWMA of how long one takes, for the replica selector.
+     */
+    private static void handleLoadReport(String line, Connection connection) {
+        String[] parts = line.split(" ");
+        try {
+            replicaSelector.reported(connection.dstorePort, Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+        } catch (RuntimeException e) {
+            System.out.println("Malformed LOAD_REPORT message: " + line);
+        }
+    }
+
+    // latency=<port>:<micros>,... after the filename of a LOAD, RELOAD or LEASE: how long the client's
+    // recent loads from each Dstore took, for the replica selector
+    private static void takeLatencies(String[] parts) {
+        for (int i = 2; i < parts.length; i++) {
+            if (!parts[i].startsWith("latency=")) {
+                continue;
+            }
+            for (String sample : parts[i].substring(8).split(",")) {
+                try {
+                    int colon = sample.indexOf(':');
+                    int port = Integer.parseInt(sample.substring(0, colon));
+                    if (dStores.containsKey(port)) {
+                        replicaSelector.observed(port, Long.parseLong(sample.substring(colon + 1)));
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Malformed latency sample: " + sample);
+                }
+            }
+        }
+    }
 
     private static void handleErrorFileDoesNotExist(String line, int rep) {
         handleRemoveAck(line, rep);
@@ -347,17 +1277,16 @@ public class Controller {
             return;
         }
 
-        synchronized (dstorePorts) {
-            if (dstorePorts.size() < rep) {
-                out.println("ERROR_NOT_ENOUGH_DSTORES");
-                return;
-            }
+        if (dstorePorts.size() < rep) {
+            out.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
         }
 
-        synchronized (index) {
+        indexLock.lock();
+        try {
             List<String> fileList = new ArrayList<>();
             for (Map.Entry<String, FileInfo> entry : index.entrySet()) {
-                if (entry.getValue().getStatus() == FileStatus.STORE_COMPLETE) {
+                if (entry.getValue().getStatus() == FileStatus.STORE_COMPLETE && entry.getValue().getParent() == null) {
                     fileList.add(entry.getKey());
                 }
             }
@@ -367,56 +1296,176 @@ public class Controller {
             } else {
                 out.println("LIST " + String.join(" ", fileList));
             }
+        } finally {
+            indexLock.unlock();
         }
     }
 
-    public static synchronized void handleLoadRequest(String line, PrintWriter out) {
-        String[] parts = line.split(" ");
-        String filename = parts[1];
+    public static void handleLoadRequest(String line, PrintWriter out, Connection connection) {
+        controllerLock.lock();
+        try {
+            String[] parts = line.split(" ");
+            String filename = parts[1];
+            takeLatencies(parts);
 
-        synchronized (index) {
-            FileInfo fileInfo = index.get(filename);
-            if (fileInfo == null || fileInfo.getStatus() != FileStatus.STORE_COMPLETE) {
-                out.println("ERROR_FILE_DOES_NOT_EXIST");
-                return;
+            indexLock.lock();
+            try {
+                FileInfo fileInfo = index.get(filename);
+                if (fileInfo == null || fileInfo.getStatus() != FileStatus.STORE_COMPLETE) {
+                    out.println("ERROR_FILE_DOES_NOT_EXIST");
+                    return;
+                }
+
+                List<Integer> dStoresWithFile = fileInfo.getDstores();
+                if (dStoresWithFile == null || dStoresWithFile.isEmpty()) {
+                    out.println("ERROR_FILE_DOES_NOT_EXIST");
+                    return;
+                }
+
+                // A LOAD starts a fresh attempt; only the RELOADs that follow it skip ports already tried
+                String attempt = loadAttempt(out, filename);
+                List<Integer> failedPorts = new ArrayList<>();
+
+                // Filter out the failed ports from the available DStores
+                List<Integer> availablePorts = new ArrayList<>(dStoresWithFile);
+                availablePorts.removeAll(failedPorts);
+                // After a restart some replicas may sit on Dstores that have not rejoined yet
+                availablePorts.retainAll(dStores.keySet());
+
+                // If all ports have failed, return an error
+                if (availablePorts.isEmpty()) {
+                    connection.triedPorts.remove(attempt);
+                    out.println("ERROR_FILE_DOES_NOT_EXIST");
+                    return;
+                }
+
+                int chosenPort = replicaSelector.choose(availablePorts);
+
+                // Send the load request to the chosen port
+                out.println("LOAD_FROM " + chosenPort + " " + fileInfo.getFileSize());
+
+                // If the request fails, we add the port to the list of failed ports
+                failedPorts.add(chosenPort);
+                connection.triedPorts.put(attempt, failedPorts);
+            } finally {
+                indexLock.unlock();
             }
+        } finally {
+            controllerLock.unlock();
+        }
+    }
 
-            List<Integer> dStoresWithFile = fileInfo.getDstores();
-            if (dStoresWithFile == null || dStoresWithFile.isEmpty()) {
-                out.println("ERROR_FILE_DOES_NOT_EXIST");
-                return;
+    /**
+     * {@code LEASE <file>}: answers {@code LEASE <file> <size> <millis> <version> <port> ...} with
+     * every live replica of the file, which the client may read from directly for the next
+     * {@code millis} without asking again. The Controller remembers the connection as a holder until
+     * then. If the file loses a replica first it sends an untagged {@code REVOKE <file>} down that
+     * connection, and if it is removed an {@code INVALIDATE <file>}, which also tells the client to
+     * drop any copy of that version it cached. Takes no global lock: the grant is made under the
+     * file's own monitor, the same one revocation takes, so a holder always sees its LEASE before
+     * any REVOKE that concerns it.
+     */
+    private static void handleLeaseRequest(String line, PrintWriter out) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            System.out.println("Malformed LEASE request: " + line);
+            return;
+        }
+        String filename = parts[1];
+        takeLatencies(parts);
+        FileInfo fileInfo = index.get(filename);
+        if (fileInfo == null) {
+            out.println("ERROR_FILE_DOES_NOT_EXIST");
+            return;
+        }
+        // REVOKE goes out untagged, on the connection itself
+        PrintWriter holder = out instanceof TaggedWriter ? ((TaggedWriter) out).target : out;
+        // Written once the monitor is released, so a client that stops reading holds up nobody else
+        String reply;
+        synchronized (fileInfo) {
+            List<Integer> ports = fileInfo.getDstores() == null ? new ArrayList<>() : new ArrayList<>(fileInfo.getDstores());
+            ports.retainAll(dStores.keySet());
+            if (fileInfo.getStatus() != FileStatus.STORE_COMPLETE || ports.isEmpty() || index.get(filename) != fileInfo) {
+                reply = "ERROR_FILE_DOES_NOT_EXIST";
+            } else {
+                reply = grantLease(filename, fileInfo, ports, holder);
             }
+        }
+        out.println(reply);
+        if (leaseGrants.incrementAndGet() % 1024 == 0) {
+            expireLeases();
+        }
+    }
 
-            // Get the list of failed ports for this file (if any)
-            List<Integer> failedPorts = failedPortsForFile.getOrDefault(filename, new ArrayList<>());
+    // Records the lease and returns the LEASE reply; caller holds the file's monitor
+    private static String grantLease(String filename, FileInfo fileInfo, List<Integer> ports, PrintWriter holder) {
+        if (LEASE_MILLIS > 0) {
+            long expiry = System.currentTimeMillis() + LEASE_MILLIS;
+            leases.compute(filename, (k, holders) -> {
+                holders = holders != null ? holders : new ConcurrentHashMap<>();
+                holders.put(holder, expiry);
+                return holders;
+            });
+        }
+        StringBuilder reply = new StringBuilder("LEASE ").append(filename).append(' ')
+                .append(fileInfo.getFileSize()).append(' ').append(LEASE_MILLIS).append(' ').append(fileInfo.getVersion());
+        for (int port : ports) {
+            reply.append(' ').append(port);
+        }
+        return reply.toString();
+    }
 
-            // Filter out the failed ports from the available DStores
-            List<Integer> availablePorts = new ArrayList<>(dStoresWithFile);
-            availablePorts.removeAll(failedPorts);
+    /**
+     * Takes every client still holding a lease on the file out of the lease table, with the notice
+     * each one is owed. Call with the file's new state in place, and pass the result to
+     * {@link #sendNotices} once every lock is released: writing to a client that stops reading
+     * blocks, and must not hold up anything else.
+     */
+    private static List<Map.Entry<PrintWriter, String>> revokeLeases(FileInfo fileInfo) {
+        return revokeLeases(fileInfo, "REVOKE");
+    }
 
-            // If all ports have failed, return an error
-            if (availablePorts.isEmpty()) {
-                out.println("ERROR_FILE_DOES_NOT_EXIST");
-                return;
+    private static List<Map.Entry<PrintWriter, String>> revokeLeases(FileInfo fileInfo, String notice) {
+        Map<PrintWriter, Long> holders;
+        synchronized (fileInfo) {
+            holders = leases.remove(fileInfo.getFilename());
+        }
+        List<Map.Entry<PrintWriter, String>> notices = new ArrayList<>();
+        if (holders != null) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<PrintWriter, Long> holder : holders.entrySet()) {
+                if (holder.getValue() > now) {
+                    notices.add(Map.entry(holder.getKey(), notice + " " + fileInfo.getFilename()));
+                }
             }
+        }
+        return notices;
+    }
 
-            // Randomly select a port that has not been used before
-            int chosenPort = availablePorts.get(new Random().nextInt(availablePorts.size()));
-
-            // Send the load request to the chosen port
-            out.println("LOAD_FROM " + chosenPort + " " + fileInfo.getFileSize());
+    private static void sendNotices(List<Map.Entry<PrintWriter, String>> notices) {
+        for (Map.Entry<PrintWriter, String> notice : notices) {
+            notice.getKey().println(notice.getValue());
+        }
+    }
 
-            // If the request fails, we add the port to the list of failed ports
-            failedPorts.add(chosenPort);
-            failedPortsForFile.put(filename, failedPorts);
+    // Forgets holders whose leases have run out, so files read once do not keep their entries forever
+    private static void expireLeases() {
+        long now = System.currentTimeMillis();
+        for (String filename : leases.keySet()) {
+            leases.computeIfPresent(filename, (k, holders) -> {
+                holders.values().removeIf(expiry -> expiry <= now);
+                return holders.isEmpty() ? null : holders;
+            });
         }
     }
 
-    public static void handleReloadRequest(String line, PrintWriter out) {
+    public static void handleReloadRequest(String line, PrintWriter out, Connection connection) {
         String[] parts = line.split(" ");
         String filename = parts[1];
+        takeLatencies(parts);
 
-        synchronized (index) {
+        indexLock.lock();
+        try {
             FileInfo fileInfo = index.get(filename);
             if (fileInfo == null || fileInfo.getStatus() != FileStatus.STORE_COMPLETE) {
                 out.println("ERROR_FILE_DOES_NOT_EXIST");
@@ -429,37 +1478,59 @@ public class Controller {
                 return;
             }
 
-            // Get the list of failed ports for this file
-            List<Integer> failedPorts = failedPortsForFile.getOrDefault(filename, new ArrayList<>());
+            // Get the ports this request has already been sent to
+            String attempt = loadAttempt(out, filename);
+            List<Integer> failedPorts = connection.triedPorts.getOrDefault(attempt, new ArrayList<>());
+            if (!failedPorts.isEmpty()) {
+                replicaSelector.failed(failedPorts.get(failedPorts.size() - 1));
+            }
 
             // Filter out the failed ports from the available DStores
             List<Integer> availablePorts = new ArrayList<>(dStoresWithFile);
             availablePorts.removeAll(failedPorts);
+            availablePorts.retainAll(dStores.keySet());
 
             // If all ports have failed, return an error
             if (availablePorts.isEmpty()) {
+                connection.triedPorts.remove(attempt);
                 out.println("ERROR_FILE_DOES_NOT_EXIST");
                 return;
             }
 
-            // Randomly select a port that has not been used before
-            int chosenPort = availablePorts.get(new Random().nextInt(availablePorts.size()));
+            // Select a port that has not been used before
+            int chosenPort = replicaSelector.choose(availablePorts);
 
             // Send the load request to the chosen port
             out.println("LOAD_FROM " + chosenPort + " " + fileInfo.getFileSize());
 
             // If the request fails, we add the port to the list of failed ports
             failedPorts.add(chosenPort);
-            failedPortsForFile.put(filename, failedPorts);
+            connection.triedPorts.put(attempt, failedPorts);
+        } finally {
+            indexLock.unlock();
         }
     }
 
-    private static synchronized List<Integer> getLeastLoadedDstores(int rep) {
-        // Create list of (port, fileCount) pairs
-        List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+    // Names one load on its connection: a pipelined request by its id, which its RELOADs reuse, and
+    // an untagged one by the file, as such a client has one request in flight at a time
+    private static String loadAttempt(PrintWriter out, String filename) {
+        return out instanceof TaggedWriter ? ((TaggedWriter) out).id + " " + filename : filename;
+    }
+
+    // Callers hold indexLock, which already serialises placement decisions
+    private static List<Integer> getLeastLoadedDstores(int rep) {
+        Map<Integer, Integer> counts = new HashMap<>();
         for (Map.Entry<Integer, DstoreInfo> entry : dStores.entrySet()) {
-            entries.add(new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue().getFileCount()));
+            counts.put(entry.getKey(), entry.getValue().getFileCount());
         }
+        List<Integer> result = leastLoaded(counts, rep);
+        System.out.println(result);
+        return result;
+    }
+
+    private static List<Integer> leastLoaded(Map<Integer, Integer> counts, int rep) {
+        // Create list of (port, fileCount) pairs
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<>(counts.entrySet());
 
         // Sort by file count (ascending)
         entries.sort(Comparator.comparingInt(Map.Entry::getValue));
@@ -474,41 +1545,140 @@ public class Controller {
                 i++;
             }
         }
-        System.out.println(result);
         // Trim to exactly `rep` if more than needed (e.g., from ties)
-        return result.subList(0, rep);
+        return new ArrayList<>(result.subList(0, rep));
     }
 
 
 
 
+    /**
+     * Drops files whose STORE never completed before the restart: no client is waiting for them
+     * and their replicas may be partial.
+     */
+    private static void recoverIndex() {
+        List<String> incomplete = new ArrayList<>();
+        for (FileInfo info : index.values()) {
+            if (info.getStatus() == FileStatus.STORE_IN_PROGRESS) {
+                incomplete.add(info.getFilename());
+            }
+        }
+        for (String filename : incomplete) {
+            index.remove(filename);
+            logDelete(filename);
+        }
+        if (!incomplete.isEmpty()) {
+            System.out.println("Dropped " + incomplete.size() + " files whose STORE had not completed");
+        }
+    }
+
+    private static CompletableFuture<Void> logPut(FileInfo fileInfo) {
+        return metadataLog == null ? CompletableFuture.completedFuture(null) : metadataLog.put(fileInfo);
+    }
+
+    private static CompletableFuture<Void> logDelete(String filename) {
+        return metadataLog == null ? CompletableFuture.completedFuture(null) : metadataLog.delete(filename);
+    }
+
     // FileInfo and DstoreInfo Classes
 
     static class FileInfo {
         private final String filename;
-        private final int fileSize;
+        private final long fileSize;
         private FileStatus status;
         private List<Integer> dstores;
-
-        public FileInfo(String filename, int fileSize) {
+        // Set on a file stored with CSTORE, whose data lives in its blocks rather than on dstores
+        private long blockSize;
+        // Set on a block of a CSTORE file: the file it belongs to
+        private String parent;
+        // Set on an ESTORE file, whose blockSize is then the size of each shard
+        private int dataShards;
+        private int parityShards;
+        // Different for every entry ever created, across restarts too, so a client can tell a file
+        // stored again under the same name from the copy it cached
+        private final long version = versions.getAndIncrement();
+        private static final AtomicLong versions = new AtomicLong(System.currentTimeMillis() << 20);
+        // When the file reached STORE_COMPLETE, in the order files do, so a rebalance can tell which
+        // files its LIST answers may predate
+        private volatile long completion;
+        private static final AtomicLong completions = new AtomicLong();
+
+        public FileInfo(String filename, long fileSize) {
             this.filename = filename;
             this.fileSize = fileSize;
             this.status = FileStatus.STORE_IN_PROGRESS;
         }
 
+        static String blockName(String filename, int block) {
+            return filename + "#" + block;
+        }
+
         public String getFilename() {
             return filename;
         }
 
-        public int getFileSize() {
+        public long getFileSize() {
             return fileSize;
         }
 
+        public long getVersion() {
+            return version;
+        }
+
+        public long getCompletion() {
+            return completion;
+        }
+
+        static long lastCompletion() {
+            return completions.get();
+        }
+
+        public long getBlockSize() {
+            return blockSize;
+        }
+
+        public void setBlockSize(long blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        // Blocks, or shards of an erasure coded file. Every chunked file has at least one block, so
+        // an empty one still has an entry to store
+        public int getBlockCount() {
+            if (dataShards > 0) {
+                return dataShards + parityShards;
+            }
+            return (int) Math.max(1, (fileSize + blockSize - 1) / blockSize);
+        }
+
+        public int getDataShards() {
+            return dataShards;
+        }
+
+        public int getParityShards() {
+            return parityShards;
+        }
+
+        public void setShards(int dataShards, int parityShards) {
+            this.dataShards = dataShards;
+            this.parityShards = parityShards;
+        }
+
+        public String getParent() {
+            return parent;
+        }
+
+        public void setParent(String parent) {
+            this.parent = parent;
+        }
+
         public FileStatus getStatus() {
             return status;
         }
 
         public void setStatus(FileStatus status) {
+            if (status == FileStatus.STORE_COMPLETE && this.status != FileStatus.STORE_COMPLETE) {
+                this.completion = completions.incrementAndGet();
+            }
             this.status = status;
         }
 
@@ -523,6 +1693,7 @@ public class Controller {
 
     static class DstoreInfo {
         private int fileCount;
+        private long byteCount;
         private Socket socket;
         private PrintWriter out;
         private long lastHeartbeat;
@@ -533,16 +1704,22 @@ public class Controller {
             this.lastHeartbeat = System.currentTimeMillis();
         }
 
-        public int getFileCount() {
+        public synchronized int getFileCount() {
             return fileCount;
         }
 
-        public void incrementFileCount() {
+        public synchronized long getByteCount() {
+            return byteCount;
+        }
+
+        public synchronized void addFile(long size) {
             this.fileCount++;
+            this.byteCount += size;
         }
 
-        public void decrementFileCount() {
+        public synchronized void removeFile(long size) {
             this.fileCount--;
+            this.byteCount -= size;
         }
 
         public Socket getSocket() {
@@ -562,72 +1739,214 @@ public class Controller {
         }
     }
 
-    private static void listenToDstore(Socket socket, int dstorePort) {
-        executorService.submit(() -> {
-            try (
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
-            ) {
-                String msg;
-                while ((msg = in.readLine()) != null) {
-                    System.out.println("From Dstore " + dstorePort + ": " + msg);
-                    if (msg.equals("HEARTBEAT")) {
-                        dStores.get(dstorePort).updateHeartbeat();
-                    } else if (msg.startsWith("STORE_ACK")) {
-                        handleStoreAck(msg, currentRep);  // pass rep
-                    } else if (msg.startsWith("REMOVE_ACK")) {
-                        handleRemoveAck(msg, currentRep);  // pass rep
+    /**
+     * One MSTORE or MREMOVE: each file's outcome in request order, and a latch over the accepted
+     * files still waiting for their acks. Files rejected up front have their error from the start.
+     */
+    static class Batch {
+        private final PrintWriter out;
+        private final String reply;
+        // null until the file's outcome is known
+        final Map<String, String> results = new LinkedHashMap<>();
+        private final List<CompletableFuture<Void>> logged = new ArrayList<>();
+        private CountDownLatch pending;
+
+        Batch(PrintWriter out, String reply) {
+            this.out = out;
+            this.reply = reply;
+        }
+
+        void start(int accepted) {
+            pending = new CountDownLatch(accepted);
+        }
+
+        /**
+         * Records a file's outcome. Called exactly once per accepted file, by whoever took it out
+         * of the batch map.
+         */
+        void done(String filename, String result, CompletableFuture<Void> logWrite) {
+            synchronized (this) {
+                results.put(filename, result);
+                logged.add(logWrite);
+            }
+            pending.countDown();
+        }
+
+        /**
+         * Waits while acks keep arriving; the batch only times out after a whole timeout without
+         * progress. Returns the files that were still outstanding, now marked ERROR_TIMEOUT.
+         */
+        List<String> awaitProgress(int timeoutMillis, List<String> accepted, Map<String, Batch> inFlight) {
+            List<String> timedOut = new ArrayList<>();
+            try {
+                long remaining = pending.getCount();
+                while (!pending.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    long now = pending.getCount();
+                    if (now == remaining) {
+                        break;
                     }
-                    // Add more handlers as needed
+                    remaining = now;
                 }
-            } catch (IOException e) {
-                System.out.println("Dstore " + dstorePort + " disconnected.");
-                handleDstoreCrash(dstorePort);
+                for (String filename : accepted) {
+                    if (inFlight.remove(filename, this)) {
+                        timedOut.add(filename);
+                        done(filename, "ERROR_TIMEOUT", CompletableFuture.completedFuture(null));
+                    }
+                }
+                // Acks that took their file out just before the timeout are still recording it
+                pending.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        });
-    }
+            return timedOut;
+        }
 
-    private static synchronized void handleDstoreCrash(int port) {
-        System.out.println("Handling crash for Dstore on port " + port);
-        List<String> toRemove = new ArrayList<>();
-        // Decrement file counts, remove files from index if needed, etc.
-        synchronized (index) {
-            for (Map.Entry<String, FileInfo> entry : index.entrySet()) {
-                FileInfo info = entry.getValue();
-                synchronized (info) {
-                    if (info.getDstores() != null && info.getDstores().contains(port)) {
-                        System.out.println(info.getDstores());
-                        info.getDstores().remove((Integer) port);
-                        info.setDstores(info.getDstores());
-                        if (info.getDstores().isEmpty()) {
-                            toRemove.add(entry.getKey());
-                            System.out.println("ITS EMPTY");
-                        }
-                        System.out.println(info.getDstores());
-                        info.setStatus(FileStatus.STORE_COMPLETE);
-                    }
+        synchronized boolean allSucceeded(String expected) {
+            for (String result : results.values()) {
+                if (!expected.equals(result)) {
+                    return false;
                 }
             }
+            return true;
         }
 
-        for (String key : toRemove) {
-            index.remove(key);
+        // Completes once every recorded outcome is in the metadata log
+        synchronized CompletableFuture<Void> logged() {
+            return CompletableFuture.allOf(logged.toArray(new CompletableFuture<?>[0]));
         }
 
+        /**
+         * Sends the reply once every outcome it reports is durable.
+         */
+        void reply() {
+            logged().thenRun(() -> {
+                StringBuilder message = new StringBuilder(reply);
+                synchronized (this) {
+                    for (Map.Entry<String, String> entry : results.entrySet()) {
+                        message.append(' ').append(entry.getKey()).append(' ').append(entry.getValue());
+                    }
+                }
+                out.println(message);
+                if (out.checkError()) {
+                    System.out.println("Error responding to client for " + reply);
+                }
+            });
+        }
+    }
 
+    /**
+     * Prefixes every line written through it with {@code RES <id>}. Handlers only use println, so
+     * that is all it has to intercept.
+     */
+    static class TaggedWriter extends PrintWriter {
+        private final PrintWriter target;
+        private final String id;
+        private final String prefix;
+
+        TaggedWriter(PrintWriter target, String id) {
+            super(target);
+            this.target = target;
+            this.id = id;
+            this.prefix = "RES " + id + " ";
+        }
 
-        try {
-            DstoreInfo info = dStores.get(port);
-            if (info != null && info.getSocket() != null) {
-                info.getSocket().close();
+        @Override
+        public void println(String x) {
+            target.println(prefix + x);
+        }
+
+        @Override
+        public void println(Object x) {
+            println(String.valueOf(x));
+        }
+
+        @Override
+        public boolean checkError() {
+            return target.checkError();
+        }
+    }
+
+    /**
+     * One client or Dstore connection. {@code dstorePort} is set once the peer has sent JOIN.
+     */
+    static class Connection {
+        private static final int MAX_TRACKED_LOADS = 4096;
+
+        final Socket socket;
+        final PrintWriter out;
+        volatile int dstorePort = -1;
+        // Filenames from this Dstore's INVENTORY lines, until its INVENTORY_END
+        final Set<String> reportedFiles = ConcurrentHashMap.newKeySet();
+        // Ports each of this client's loads has been sent to, for its RELOADs to skip. A load that
+        // succeeds never says so, so only the most recent MAX_TRACKED_LOADS are kept
+        final Map<String, List<Integer>> triedPorts = Collections.synchronizedMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Integer>> eldest) {
+                return size() > MAX_TRACKED_LOADS;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        });
+
+        Connection(Socket socket, PrintWriter out) {
+            this.socket = socket;
+            this.out = out;
         }
+    }
+
+    private static void handleDstoreCrash(int port) {
+        List<Map.Entry<PrintWriter, String>> notices = new ArrayList<>();
+        controllerLock.lock();
+        try {
+            System.out.println("Handling crash for Dstore on port " + port);
+            List<String> toRemove = new ArrayList<>();
+            // Decrement file counts, remove files from index if needed, etc.
+            indexLock.lock();
+            try {
+                for (Map.Entry<String, FileInfo> entry : index.entrySet()) {
+                    FileInfo info = entry.getValue();
+                    synchronized (info) {
+                        if (info.getDstores() != null && info.getDstores().contains(port)) {
+                            System.out.println(info.getDstores());
+                            info.getDstores().remove((Integer) port);
+                            info.setDstores(info.getDstores());
+                            if (info.getDstores().isEmpty()) {
+                                toRemove.add(entry.getKey());
+                                System.out.println("ITS EMPTY");
+                            }
+                            System.out.println(info.getDstores());
+                            info.setStatus(FileStatus.STORE_COMPLETE);
+                            logPut(info);
+                            notices.addAll(revokeLeases(info));
+                        }
+                    }
+                }
+            } finally {
+                indexLock.unlock();
+            }
+
+            for (String key : toRemove) {
+                index.remove(key);
+                logDelete(key);
+            }
 
-        // Remove Dstore from tracking
-        dStores.remove(port);
-        dstorePorts.remove((Integer) port);
 
+
+            try {
+                DstoreInfo info = dStores.get(port);
+                if (info != null && info.getSocket() != null) {
+                    info.getSocket().close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            // Remove Dstore from tracking
+            dStores.remove(port);
+            dstorePorts.remove((Integer) port);
+            replicaSelector.removed(port);
+        } finally {
+            controllerLock.unlock();
+        }
+        sendNotices(notices);
     }
 
 
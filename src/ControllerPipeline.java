@@ -0,0 +1,187 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A connection to the Controller that carries many requests at once. Each request goes out as
+ * {@code REQ <id> <request>} and every reply to it comes back as {@code RES <id> <reply>}, so
+ * replies can arrive in any order. A reader thread hands each reply to the handler of its request.
+ * A request fails if it goes a whole timeout without hearing anything. Lines the Controller sends
+ * on its own, such as {@code REVOKE <file>}, carry no tag and go to the notice handler.
+ */
+class ControllerPipeline {
+
+    /**
+     * Receives the replies to one request in order. Returns true once the request is finished;
+     * throwing fails it.
+     */
+    interface ReplyHandler {
+        boolean onReply(long id, String reply) throws Exception;
+    }
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "controller-pipeline-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Socket socket;
+    private final PrintWriter out;
+    private final BufferedReader in;
+    private final int timeout;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    // Gets every untagged line, then null once the connection has closed
+    private final Consumer<String> notices;
+
+    private class Pending {
+        final ReplyHandler handler;
+        final CompletableFuture<?> result;
+        ScheduledFuture<?> deadline;
+
+        Pending(ReplyHandler handler, CompletableFuture<?> result) {
+            this.handler = handler;
+            this.result = result;
+        }
+
+        synchronized void rearm(long id) {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            deadline = timer.schedule(() -> fail(id, new SocketTimeoutException("No reply from the Controller to request " + id)),
+                    timeout, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void cancel() {
+            deadline.cancel(false);
+        }
+    }
+
+    ControllerPipeline(int cport, int timeout, Consumer<String> notices) throws IOException {
+        this.timeout = timeout;
+        this.notices = notices;
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), cport);
+        socket.setTcpNoDelay(true);
+        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        ClientLogger.getInstance().connectionEstablished(cport);
+
+        Thread reader = new Thread(this::readLoop, "controller-pipeline-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a new request. {@code result} is failed if the handler throws, the request times out
+     * or the connection closes; completing it on success is up to the handler.
+     */
+    long send(String request, ReplyHandler handler, CompletableFuture<?> result) {
+        long id = nextId.incrementAndGet();
+        Pending entry = new Pending(handler, result);
+        pending.put(id, entry);
+        entry.rearm(id);
+        write(id, request);
+        return id;
+    }
+
+    /**
+     * Sends a follow-up under an existing request id, e.g. RELOAD after a failed LOAD_FROM, and
+     * restarts its timeout.
+     */
+    void sendFollowUp(long id, String request) {
+        Pending entry = pending.get(id);
+        if (entry != null) {
+            entry.rearm(id);
+            write(id, request);
+        }
+    }
+
+    /**
+     * Restarts a request's timeout, for work on the client side (an upload, say) that happens
+     * between two of its replies.
+     */
+    void touch(long id) {
+        Pending entry = pending.get(id);
+        if (entry != null) {
+            entry.rearm(id);
+        }
+    }
+
+    private void write(long id, String request) {
+        String line = "REQ " + id + " " + request;
+        out.println(line);
+        ClientLogger.getInstance().messageSent(socket.getPort(), line);
+    }
+
+    void close() throws IOException {
+        socket.close();
+    }
+
+    private void readLoop() {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                ClientLogger.getInstance().messageReceived(socket.getPort(), line);
+                if (!line.startsWith("RES ")) {
+                    notices.accept(line);
+                    continue;
+                }
+                int space = line.indexOf(' ', 4);
+                if (space < 0) {
+                    ClientLogger.getInstance().error("Unexpected message received on pipelined connection: " + line);
+                    continue;
+                }
+                long id = Long.parseLong(line.substring(4, space));
+                Pending entry = pending.get(id);
+                if (entry == null) {
+                    continue; // already timed out
+                }
+                entry.rearm(id);
+                try {
+                    if (entry.handler.onReply(id, line.substring(space + 1))) {
+                        finish(id);
+                    }
+                } catch (Exception e) {
+                    fail(id, e);
+                }
+            }
+        } catch (IOException e) {
+            // Fall through and fail whatever is still waiting
+        }
+        notices.accept(null);
+        for (Long id : pending.keySet()) {
+            fail(id, new IOException("Connection closed by the Controller"));
+        }
+    }
+
+    /**
+     * Ends a request that the client finished itself, e.g. a LOAD once the Dstore has delivered.
+     */
+    void finish(long id) {
+        Pending entry = pending.remove(id);
+        if (entry != null) {
+            entry.cancel();
+        }
+    }
+
+    void fail(long id, Throwable cause) {
+        Pending entry = pending.remove(id);
+        if (entry != null) {
+            entry.cancel();
+            entry.result.completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selector based front end for the Controller. A small fixed set of event loop threads own every
+ * client and Dstore connection and only do socket I/O and line framing. Each complete line is
+ * handed to a fixed worker pool which runs the normal Controller handlers, so an idle connection
+ * costs a channel and a selection key rather than a thread.
+ */
+class ControllerSelectorServer {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // A connection stops being read while it has this much output its peer has not taken, or this
+    // many lines not yet handled, and starts again once both are down to half
+    private static final long OUTBOX_LIMIT = 4L * 1024 * 1024;
+    private static final int INBOX_LIMIT = 4096;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final int rep;
+    private final int timeOut;
+    private final int reFactor;
+
+    ControllerSelectorServer(int loopCount, int workerCount, int rep, int timeOut, int reFactor) throws IOException {
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop();
+        }
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        this.rep = rep;
+        this.timeOut = timeOut;
+        this.reFactor = reFactor;
+    }
+
+    void start(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "controller-loop-" + i).start();
+        }
+
+        // Accepting stays on its own blocking thread; connections are spread round robin over the loops
+        new Thread(() -> {
+            long backoff = 0;
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = null;
+                try {
+                    channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    SocketChannel accepted = channel;
+                    EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                    loop.execute(() -> loop.register(accepted));
+                    backoff = 0;
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    if (channel != null) {
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                    // Errors such as running out of file descriptors persist, so wait before
+                    // trying again, longer each time, rather than spinning on them
+                    backoff = Math.min(MAX_ACCEPT_BACKOFF_MILLIS, Math.max(10, backoff * 2));
+                    System.out.println("Accept failed, retrying in " + backoff + " ms: " + e.getMessage());
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }, "controller-accept").start();
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                ChannelConnection connection = new ChannelConnection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                System.out.println("Connection error: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ChannelConnection connection = (ChannelConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Per connection state. Reads and writes only ever happen on the owning event loop; lines are
+     * handled one at a time, in arrival order, on the worker pool.
+     */
+    private class ChannelConnection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final Controller.Connection connection;
+        private SelectionKey key;
+        private ByteArrayOutputStream partialLine;
+
+        private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+        private final AtomicLong outboxBytes = new AtomicLong();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inboxSize = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private boolean closed;
+        // Owned by the event loop, like the selection key
+        private boolean writePending;
+        private boolean readPaused;
+
+        ChannelConnection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new ChannelOutputStream(this), StandardCharsets.UTF_8), true);
+            this.connection = new Controller.Connection(channel.socket(), out);
+        }
+
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n == -1) {
+                close();
+                return;
+            }
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    String line = takeLine();
+                    submit(() -> Controller.handleMessage(line, connection, rep, timeOut, reFactor));
+                } else {
+                    if (partialLine == null) {
+                        partialLine = new ByteArrayOutputStream(128);
+                    }
+                    partialLine.write(b);
+                }
+            }
+
+            if (outboxBytes.get() > OUTBOX_LIMIT || inboxSize.get() > INBOX_LIMIT) {
+                readPaused = true;
+                updateInterest();
+            }
+        }
+
+        private String takeLine() {
+            if (partialLine == null) {
+                return "";
+            }
+            byte[] bytes = partialLine.toByteArray();
+            int length = bytes.length;
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            // Drop the buffer so idle connections hold no line state between requests
+            partialLine = null;
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        void send(byte[] bytes) {
+            outboxBytes.addAndGet(bytes.length);
+            outbox.add(ByteBuffer.wrap(bytes));
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    try {
+                        flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        void flush() throws IOException {
+            if (closed) {
+                outbox.clear();
+                outboxBytes.set(0);
+                return;
+            }
+            ByteBuffer buffer;
+            writePending = false;
+            while ((buffer = outbox.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    writePending = true;
+                    break;
+                }
+                outbox.poll();
+                outboxBytes.addAndGet(-buffer.capacity());
+            }
+            updateInterest();
+            resumeReading();
+        }
+
+        // Runs on the event loop
+        private void resumeReading() {
+            if (readPaused && !closed && outboxBytes.get() <= OUTBOX_LIMIT / 2 && inboxSize.get() <= INBOX_LIMIT / 2) {
+                readPaused = false;
+                updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            if (key != null && key.isValid()) {
+                key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+
+        /**
+         * Runs handlers for this connection strictly one after another on the worker pool.
+         */
+        private void submit(Runnable task) {
+            inboxSize.incrementAndGet();
+            inbox.add(task);
+            if (draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                while ((task = inbox.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    if (inboxSize.decrementAndGet() == INBOX_LIMIT / 2) {
+                        loop.execute(this::resumeReading);
+                    }
+                }
+                draining.set(false);
+                // Re-check in case a line arrived between the last poll and releasing the flag
+                if (inbox.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            submit(() -> Controller.connectionClosed(connection));
+        }
+    }
+
+    /**
+     * Buffers what a handler prints and queues it for the event loop on every flush, so the
+     * PrintWriter based handlers never block on the socket.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final ChannelConnection connection;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream(128);
+
+        ChannelOutputStream(ChannelConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            pending.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            pending.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (pending.size() > 0) {
+                connection.send(pending.toByteArray());
+                pending.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compressed form of a file, as a client uploads it and a Dstore stores and serves it: the
+ * content cut into blocks of {@link #BLOCK_SIZE} bytes, each deflated on its own at the fastest
+ * level and written as its original and stored lengths (two big-endian ints) followed by the stored
+ * bytes. A block that does not shrink is stored raw, with both lengths equal. Because blocks are
+ * independent, a range is read by skipping headers and inflating only the blocks it covers.
+ */
+class DeflateBlocks {
+
+    static final int BLOCK_SIZE = 128 * 1024;
+    private static final int HEADER = 8;
+
+    static byte[] compress(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + HEADER);
+        byte[] buffer = new byte[BLOCK_SIZE];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int offset = 0; offset < data.length; offset += BLOCK_SIZE) {
+                int length = Math.min(BLOCK_SIZE, data.length - offset);
+                deflater.reset();
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                // Only room for less than the original: a block that would not fit is stored raw
+                int stored = 0;
+                while (!deflater.finished() && stored < length) {
+                    stored += deflater.deflate(buffer, stored, length - stored);
+                }
+                boolean shrank = deflater.finished() && stored < length;
+                writeInt(out, length);
+                writeInt(out, shrank ? stored : length);
+                if (shrank) {
+                    out.write(buffer, 0, stored);
+                } else {
+                    out.write(data, offset, length);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] decompress(byte[] blocks) throws IOException {
+        long size = 0;
+        for (int position = 0; position < blocks.length; ) {
+            if (blocks.length - position < HEADER) {
+                throw new IOException("Compressed content ends inside a block header");
+            }
+            int original = readInt(blocks, position);
+            int stored = checkLengths(original, readInt(blocks, position + 4));
+            position += HEADER + stored;
+            if (position > blocks.length) {
+                throw new IOException("Compressed content ends inside a block");
+            }
+            size += original;
+        }
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Content is too large to load into memory (" + size + " bytes)");
+        }
+
+        byte[] data = new byte[(int) size];
+        Inflater inflater = new Inflater();
+        try {
+            int written = 0;
+            for (int position = 0; position < blocks.length; ) {
+                int original = readInt(blocks, position);
+                int stored = readInt(blocks, position + 4);
+                inflate(inflater, blocks, position + HEADER, stored, data, written, original);
+                position += HEADER + stored;
+                written += original;
+            }
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    /**
+     * Returns the length of the content held in {@code blocks}, reading only the block headers, or
+     * -1 if the headers do not describe the channel exactly.
+     */
+    static long contentSize(FileChannel blocks) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        long size = 0;
+        long position = 0;
+        long end = blocks.size();
+        while (position < end) {
+            header.clear();
+            if (end - position < HEADER || !readFully(blocks, header, position)) {
+                return -1;
+            }
+            int original = header.getInt(0);
+            int stored = header.getInt(4);
+            if (original < 0 || original > BLOCK_SIZE || stored < 0 || stored > original) {
+                return -1;
+            }
+            position += HEADER + stored;
+            size += original;
+        }
+        return position == end ? size : -1;
+    }
+
+    /**
+     * Writes {@code count} bytes of the content starting at {@code offset} to {@code out},
+     * inflating only the blocks the range covers. Returns the number of bytes written, fewer than
+     * {@code count} if the content ends first.
+     */
+    static long copyRange(FileChannel blocks, long offset, long count, OutputStream out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        byte[] original = new byte[BLOCK_SIZE];
+        Inflater inflater = new Inflater();
+        long position = 0;
+        long start = 0; // offset in the content of the block at position
+        long written = 0;
+        try {
+            while (written < count && position < blocks.size()) {
+                header.clear();
+                if (!readFully(blocks, header, position)) {
+                    break;
+                }
+                int originalLength = header.getInt(0);
+                int storedLength = checkLengths(originalLength, header.getInt(4));
+                if (start + originalLength > offset + written) {
+                    ByteBuffer stored = ByteBuffer.allocate(storedLength);
+                    if (!readFully(blocks, stored, position + HEADER)) {
+                        throw new IOException("Compressed content ends inside a block");
+                    }
+                    inflate(inflater, stored.array(), 0, storedLength, original, 0, originalLength);
+                    int from = (int) (offset + written - start);
+                    int n = (int) Math.min(originalLength - from, count - written);
+                    out.write(original, from, n);
+                    written += n;
+                }
+                position += HEADER + storedLength;
+                start += originalLength;
+            }
+        } finally {
+            inflater.end();
+        }
+        return written;
+    }
+
+    private static void inflate(Inflater inflater, byte[] in, int inOffset, int inLength, byte[] out, int outOffset, int outLength) throws IOException {
+        if (inLength == outLength) {
+            System.arraycopy(in, inOffset, out, outOffset, outLength);
+            return;
+        }
+        inflater.reset();
+        inflater.setInput(in, inOffset, inLength);
+        int n = 0;
+        try {
+            while (n < outLength && !inflater.finished()) {
+                int inflated = inflater.inflate(out, outOffset + n, outLength - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block: " + e.getMessage(), e);
+        }
+        if (n != outLength) {
+            throw new IOException("Compressed block holds " + n + " bytes, its header says " + outLength);
+        }
+    }
+
+    private static int checkLengths(int original, int stored) throws IOException {
+        if (original < 0 || original > BLOCK_SIZE || stored < 0 || stored > original) {
+            throw new IOException("Corrupt compressed block header: " + original + " " + stored);
+        }
+        return stored;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(byte[] bytes, int position) {
+        return (bytes[position] & 0xff) << 24 | (bytes[position + 1] & 0xff) << 16
+                | (bytes[position + 2] & 0xff) << 8 | bytes[position + 3] & 0xff;
+    }
+}
@@ -1,7 +1,79 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
 
 public class Dstore {
+    // -Ddstore.threads=virtual runs each client connection on its own virtual thread
+    private static final ExecutorService executorService = VirtualThreads.newExecutor(
+            System.getProperty("dstore.threads", "platform").equals("virtual"), "Dstore");
+    // Striped per-filename locks: LOAD_DATA of a file shares its read lock, STORE and REMOVE of it are exclusive,
+    // and operations on different files only contend when their names hash to the same stripe
+    private static final int LOCK_STRIPES = 256;
+    private static final ReadWriteLock[] fileLocks = new ReadWriteLock[LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            fileLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    // STORE streams through these fixed-size direct buffers, so an upload never needs more memory than one buffer
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    // REBUILD decodes this much of a shard at a time, holding k + m pieces of it in memory
+    private static final int REBUILD_PIECE_SIZE = 1024 * 1024;
+
+    // -Ddstore.scrub.rate: bytes a second the background scrubber reads, 0 to turn it off
+    private static final long SCRUB_RATE = Long.getLong("dstore.scrub.rate", 16L * 1024 * 1024);
+    // -Ddstore.scrub.pause: seconds between the end of one scrub pass and the start of the next
+    private static final long SCRUB_PAUSE_SECONDS = Long.getLong("dstore.scrub.pause", 600);
+
+    // -Ddstore.cache.bytes: off-heap memory for keeping hot files, 0 (the default) for no cache. Budgets
+    // past the heap size also need -XX:MaxDirectMemorySize
+    private static final long CACHE_BYTES = Long.getLong("dstore.cache.bytes", 0);
+    private static final ReadCache readCache = CACHE_BYTES > 0 ? new ReadCache(CACHE_BYTES) : null;
+
+    // -Ddstore.load.report.millis: how often the Dstore tells the Controller how busy it is (LOAD_REPORT), 0 never
+    private static final long LOAD_REPORT_MILLIS = Long.getLong("dstore.load.report.millis", 500);
+    // LOAD_DATA transfers in progress and served so far, and the EWMA of how long one takes
+    private static final AtomicInteger activeLoads = new AtomicInteger();
+    private static final AtomicLong servedLoads = new AtomicLong();
+    private static long loadLatencyMicros;
+
+    // Replaced when the Dstore rejoins a restarted Controller, so acks always go to the live connection
+    private static volatile PrintWriter controllerOut;
+
+    // Every complete file in the folder, reported to the Controller on each JOIN
+    private static final Map<String, DstoreManifest.FileRecord> inventory = new ConcurrentHashMap<>();
+    // Only set with -Ddstore.persistent=true, in which case the folder survives restarts
+    private static DstoreManifest manifest;
+    // Names of the files stored with each content hash, all hard links to the same bytes; the bytes
+    // are freed by the file system when the last of them is removed
+    private static final Map<String, Set<String>> namesByContent = new ConcurrentHashMap<>();
+    // Content being received right now, by hash: another STORE of the same bytes waits for it and
+    // links to the result instead of receiving a second copy
+    private static final Map<String, CompletableFuture<Void>> contentArriving = new ConcurrentHashMap<>();
+
     public static void main(String[] args) throws Exception {
         if (args.length != 4) {
             System.err.println("Usage: java Dstore <port> <cport> <timeout> <file_folder>");
@@ -13,46 +85,123 @@ public class Dstore {
         int timeout = Integer.parseInt(args[2]);
         String fileFolder = args[3];
 
-        // Clear folder on startup
         File folder = new File(fileFolder);
         if (!folder.exists()) folder.mkdirs();
-        for (File file : folder.listFiles()) {
-            file.delete();
-        }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("Shutdown hook triggered. Cleaning up...");
-            File folderToDelete = new File(fileFolder);
-            if (folderToDelete.exists()) {
-                for (File file : folderToDelete.listFiles()) {
+        if (Boolean.getBoolean("dstore.persistent")) {
+            // Keep existing files; only uploads interrupted by the last shutdown are thrown away
+            for (File file : folder.listFiles()) {
+                if (file.getName().endsWith(".part")) {
                     file.delete();
                 }
-                folderToDelete.delete();
             }
-        }));
+            manifest = DstoreManifest.open(folder.toPath(), inventory);
+            for (Map.Entry<String, DstoreManifest.FileRecord> entry : inventory.entrySet()) {
+                addContentName(entry.getKey(), entry.getValue());
+            }
+            System.out.println("Loaded " + inventory.size() + " files from manifest");
+        } else {
+            // Clear folder on startup
+            for (File file : folder.listFiles()) {
+                file.delete();
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println("Shutdown hook triggered. Cleaning up...");
+                File folderToDelete = new File(fileFolder);
+                if (folderToDelete.exists()) {
+                    for (File file : folderToDelete.listFiles()) {
+                        file.delete();
+                    }
+                    folderToDelete.delete();
+                }
+            }));
+        }
 
         // Join controller
+        joinController(port, cport, fileFolder, timeout);
+
+        if (SCRUB_RATE > 0) {
+            Thread scrubber = new Thread(() -> scrubLoop(fileFolder), "dstore-scrubber");
+            scrubber.setDaemon(true);
+            scrubber.start();
+        }
+
+        if (LOAD_REPORT_MILLIS > 0) {
+            Thread reporter = new Thread(Dstore::reportLoadLoop, "dstore-load-reporter");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+
+        // Start server for clients. Accepting through a channel gives every client socket a
+        // SocketChannel, which LOAD_DATA needs for transferTo.
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        System.out.println("Dstore listening on port " + port);
+
+        while (true) {
+            Socket clientSocket = serverChannel.accept().socket();
+            executorService.submit(() -> handleClient(clientSocket, fileFolder, timeout));
+        }
+    }
+
+    private static void joinController(int port, int cport, String fileFolder, int timeout) throws IOException {
         Socket controllerSocket = new Socket("localhost", cport);
-        PrintWriter controllerOut = new PrintWriter(controllerSocket.getOutputStream(), true);
+        controllerSocket.setTcpNoDelay(true);
+        PrintWriter out = new PrintWriter(controllerSocket.getOutputStream(), true);
         BufferedReader controllerIn = new BufferedReader(new InputStreamReader(controllerSocket.getInputStream()));
 
-        controllerOut.println("JOIN " + port);
+        controllerOut = out;
+        out.println("JOIN " + port);
+        reportInventory(out);
         System.out.println("Joined controller on port " + cport);
 
-        // Start controller listener thread
-        new Thread(() -> handleControllerMessages(controllerIn, controllerOut, fileFolder)).start();
+        // Start controller listener thread; once the connection drops, keep trying to join again
+        executorService.submit(() -> {
+            handleControllerMessages(controllerIn, out, fileFolder, timeout);
+            rejoinController(port, cport, fileFolder, timeout);
+        });
+    }
 
-        // Start server for clients
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Dstore listening on port " + port);
+    /**
+     * Sends the files this Dstore already holds, as {@code INVENTORY <name> <size> ...} lines of up
+     * to 1000 files followed by {@code INVENTORY_END}, so the Controller can reuse these replicas.
+     */
+    private static void reportInventory(PrintWriter out) {
+        StringBuilder line = new StringBuilder("INVENTORY");
+        int count = 0;
+        for (Map.Entry<String, DstoreManifest.FileRecord> entry : inventory.entrySet()) {
+            line.append(' ').append(entry.getKey()).append(' ').append(entry.getValue().size);
+            if (++count % 1000 == 0) {
+                out.println(line);
+                line = new StringBuilder("INVENTORY");
+            }
+        }
+        if (count % 1000 != 0) {
+            out.println(line);
+        }
+        out.println("INVENTORY_END");
+    }
 
+    /**
+     * Retries JOIN every second after losing the controller, so a Controller restarted with a
+     * durable index finds this Dstore's files again instead of having them re-uploaded.
+     */
+    private static void rejoinController(int port, int cport, String fileFolder, int timeout) {
         while (true) {
-            Socket clientSocket = serverSocket.accept();
-            new Thread(() -> handleClient(clientSocket, fileFolder, timeout, controllerOut)).start();
+            try {
+                Thread.sleep(1000);
+                joinController(port, cport, fileFolder, timeout);
+                return;
+            } catch (IOException e) {
+                System.out.println("Controller not reachable yet, retrying");
+            } catch (InterruptedException e) {
+                return;
+            }
         }
     }
 
-    private static void handleControllerMessages(BufferedReader controllerIn, PrintWriter controllerOut, String fileFolder) {
+    private static void handleControllerMessages(BufferedReader controllerIn, PrintWriter controllerOut, String fileFolder, int timeout) {
         try {
             String controllerLine;
             while ((controllerLine = controllerIn.readLine()) != null) {
@@ -66,22 +215,33 @@ public class Dstore {
                     }
 
                     String filename = parts[1];
-                    File file = new File(fileFolder, filename);
-
-                    synchronized (Dstore.class) {
-                        if (file.exists()) {
-                            if (file.delete()) {
-                                System.out.println("Deleted file: " + filename);
-                                controllerOut.println("REMOVE_ACK " + filename);
-                            } else {
-                                System.out.println("Failed to delete file: " + filename);
-                            }
-                        } else {
-                            System.out.println("File does not exist for REMOVE: " + filename);
-                            controllerOut.println("ERROR_FILE_DOES_NOT_EXIST " + filename);
+                    try {
+                        if (deleteFile(fileFolder, filename)) {
+                            controllerOut.println("REMOVE_ACK " + filename);
                         }
-                        controllerOut.flush();
+                    } catch (NoSuchFileException e) {
+                        System.out.println("File does not exist for REMOVE: " + filename);
+                        controllerOut.println("ERROR_FILE_DOES_NOT_EXIST " + filename);
+                    }
+                    controllerOut.flush();
+                } else if (controllerLine.equals("LIST")) {
+                    StringBuilder response = new StringBuilder("LIST");
+                    for (String filename : inventory.keySet()) {
+                        response.append(' ').append(filename);
+                    }
+                    controllerOut.println(response);
+                } else if (controllerLine.startsWith("REBUILD")) {
+                    String instruction = controllerLine;
+                    executorService.submit(() -> handleRebuild(instruction, controllerOut, fileFolder, timeout));
+                } else if (controllerLine.startsWith("REBALANCE")) {
+                    // Off the listener thread: transfers can take a while and REMOVEs must keep flowing. The
+                    // copies to delete are taken as they are now, in order with the REMOVEs and STOREs around it
+                    String instruction = controllerLine;
+                    Map<String, DstoreManifest.FileRecord> removing = new HashMap<>();
+                    for (String filename : removals(instruction.split(" "))) {
+                        removing.put(filename, inventory.get(filename));
                     }
+                    executorService.submit(() -> handleRebalance(instruction, removing, controllerOut, fileFolder, timeout));
                 } else {
                     System.out.println("Unknown command from controller: " + controllerLine);
                 }
@@ -91,65 +251,513 @@ public class Dstore {
         }
     }
 
-    private static void handleClient(Socket clientSocket, String fileFolder, int timeout, PrintWriter controllerOut) {
+    /**
+     * Deletes a file and drops it from the inventory. Returns false if the file could not be
+     * deleted; throws NoSuchFileException if it was not there.
+     */
+    private static boolean deleteFile(String fileFolder, String filename) throws IOException {
+        File file = new File(fileFolder, filename);
+        ReadWriteLock lock = lockFor(filename);
+        lock.writeLock().lock();
+        try {
+            if (!file.exists()) {
+                throw new NoSuchFileException(filename);
+            }
+            // Drop it from the manifest first: a crash in between leaves an unlisted file, never a listed missing one
+            removeContentName(filename, inventory.remove(filename));
+            if (readCache != null) {
+                readCache.invalidate(filename);
+            }
+            if (manifest != null) {
+                manifest.removed(filename);
+            }
+            if (file.delete()) {
+                System.out.println("Deleted file: " + filename);
+                return true;
+            }
+            System.out.println("Failed to delete file: " + filename);
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Carries out {@code REBALANCE <nsend> (<file> <nports> <port>...)* <nremove> <file>*}: copies
+     * files to the listed Dstores in parallel, then deletes the files to remove. A file whose copy
+     * failed is kept, and REBALANCE_COMPLETE is only sent when everything succeeded, so the
+     * Controller never records a replica that does not exist or forgets one that does. A file is
+     * only deleted if it is still the copy in {@code removing}, so one stored again meanwhile stays.
+     */
+    private static void handleRebalance(String line, Map<String, DstoreManifest.FileRecord> removing,
+                                        PrintWriter controllerOut, String fileFolder, int timeout) {
+        String[] parts = line.split(" ");
+        Map<String, List<Future<Boolean>>> sends = new HashMap<>();
+        int i = 1;
+        int nsend = Integer.parseInt(parts[i++]);
+        for (int s = 0; s < nsend; s++) {
+            String filename = parts[i++];
+            int nports = Integer.parseInt(parts[i++]);
+            List<Future<Boolean>> transfers = new ArrayList<>();
+            for (int p = 0; p < nports; p++) {
+                int port = Integer.parseInt(parts[i++]);
+                transfers.add(executorService.submit(() -> sendFile(fileFolder, filename, port, timeout)));
+            }
+            sends.put(filename, transfers);
+        }
+
+        Set<String> failed = new HashSet<>();
+        for (Map.Entry<String, List<Future<Boolean>>> send : sends.entrySet()) {
+            for (Future<Boolean> transfer : send.getValue()) {
+                try {
+                    if (!transfer.get()) {
+                        failed.add(send.getKey());
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    failed.add(send.getKey());
+                }
+            }
+        }
+        boolean success = failed.isEmpty();
+
+        int nremove = Integer.parseInt(parts[i++]);
+        for (int r = 0; r < nremove; r++) {
+            String filename = parts[i++];
+            if (failed.contains(filename)) {
+                continue;
+            }
+            try {
+                success &= deleteCopy(fileFolder, filename, removing.get(filename));
+            } catch (NoSuchFileException e) {
+                // Already gone, which is what the Controller wants
+            } catch (IOException e) {
+                System.out.println("Failed to remove " + filename + " during rebalance: " + e.getMessage());
+                success = false;
+            }
+        }
+
+        if (success) {
+            controllerOut.println("REBALANCE_COMPLETE");
+        } else {
+            System.out.println("Rebalance incomplete, failed transfers: " + failed);
+        }
+    }
+
+    // The files a REBALANCE instruction deletes, which follow its sends
+    private static List<String> removals(String[] parts) {
+        int i = 1;
+        int nsend = Integer.parseInt(parts[i++]);
+        for (int s = 0; s < nsend; s++) {
+            i++;
+            i += Integer.parseInt(parts[i]) + 1;
+        }
+        int nremove = Integer.parseInt(parts[i++]);
+        return Arrays.asList(parts).subList(i, i + nremove);
+    }
+
+    // Deletes a file only if it is still the copy recorded as expected; a copy stored since is kept
+    private static boolean deleteCopy(String fileFolder, String filename, DstoreManifest.FileRecord expected) throws IOException {
+        ReadWriteLock lock = lockFor(filename);
+        lock.writeLock().lock();
+        try {
+            DstoreManifest.FileRecord current = inventory.get(filename);
+            if (current != expected) {
+                System.out.println("Keeping " + filename + ": stored again since the rebalance was sent");
+                return true;
+            }
+            return deleteFile(fileFolder, filename);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Carries out {@code REBUILD <shard> <shard size> <k> <m> <index> (<index> <name> <port>)*}: reads
+     * k surviving shards of an erasure coded file from their Dstores side by side, decodes shard
+     * {@code index} from them a piece at a time and stores it here under its own name. Replies
+     * REBUILD_COMPLETE or REBUILD_FAILED with the shard name.
+     */
+    private static void handleRebuild(String line, PrintWriter controllerOut, String fileFolder, int timeout) {
+        String[] parts = line.split(" ");
+        String shardName = parts[1];
+        List<Socket> sources = new ArrayList<>();
+        Path temp = null;
+        boolean rebuilt = false;
+        try {
+            long shardSize = Long.parseLong(parts[2]);
+            int data = Integer.parseInt(parts[3]);
+            int parity = Integer.parseInt(parts[4]);
+            int missing = Integer.parseInt(parts[5]);
+            int[] present = new int[data];
+            InputStream[] streams = new InputStream[data];
+            for (int s = 0; s < data; s++) {
+                present[s] = Integer.parseInt(parts[6 + 3 * s]);
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(parts[8 + 3 * s]));
+                sources.add(socket);
+                streams[s] = requestShard(socket, parts[7 + 3 * s], shardSize, timeout);
+            }
+
+            ReedSolomon codec = new ReedSolomon(data, parity);
+            CRC32C checksum = new CRC32C();
+            temp = Files.createTempFile(Paths.get(fileFolder), "." + shardName + ".", ".part");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), TRANSFER_BUFFER_SIZE)) {
+                for (long offset = 0; offset < shardSize; offset += REBUILD_PIECE_SIZE) {
+                    int length = (int) Math.min(REBUILD_PIECE_SIZE, shardSize - offset);
+                    byte[][] shards = new byte[data + parity][];
+                    for (int s = 0; s < data; s++) {
+                        shards[present[s]] = streams[s].readNBytes(length);
+                        if (shards[present[s]].length != length) {
+                            throw new IOException("Shard " + parts[7 + 3 * s] + " ended early");
+                        }
+                    }
+                    codec.reconstruct(shards, length);
+                    if (missing >= data) {
+                        // A parity shard is computed again from the data, which is now complete
+                        for (int p = data; p < data + parity; p++) {
+                            if (shards[p] == null) {
+                                shards[p] = new byte[length];
+                            }
+                        }
+                        codec.encode(shards, length);
+                    }
+                    checksum.update(shards[missing], 0, length);
+                    out.write(shards[missing], 0, length);
+                }
+            }
+
+            ReadWriteLock lock = lockFor(shardName);
+            lock.writeLock().lock();
+            try {
+                Files.move(temp, new File(fileFolder, shardName).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                recordFile(shardName, new DstoreManifest.FileRecord(shardSize, checksum.getValue(), null, false));
+            } finally {
+                lock.writeLock().unlock();
+            }
+            rebuilt = true;
+            System.out.println("Rebuilt shard " + shardName + " from " + data + " others");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to rebuild " + shardName + ": " + e.getMessage());
+        } finally {
+            for (Socket socket : sources) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing more to read from it either way
+                }
+            }
+            if (!rebuilt && temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    System.out.println("Failed to delete " + temp + ": " + e.getMessage());
+                }
+            }
+        }
+        controllerOut.println((rebuilt ? "REBUILD_COMPLETE " : "REBUILD_FAILED ") + shardName);
+    }
+
+    // Asks another Dstore for a whole shard over a framed connection; its bytes follow on the returned stream
+    private static InputStream requestShard(Socket socket, String name, long size, int timeout) throws IOException {
+        socket.setSoTimeout(timeout);
+        InputStream in = new BufferedInputStream(socket.getInputStream(), TRANSFER_BUFFER_SIZE);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        out.println("HELLO FRAMED");
+        out.println("LOAD_DATA " + name + " 0 " + size);
+        String hello = readLine(in);
+        String header = readLine(in);
+        if (!"HELLO FRAMED".equals(hello) || !("DATA " + size).equals(header)) {
+            throw new IOException("Dstore " + socket.getPort() + " cannot supply " + name + ": " + header);
+        }
+        return in;
+    }
+
+    // One line of a reply whose body follows on the same stream, so it cannot go through a BufferedReader
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                return line.length() > 0 ? line.toString() : null;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Copies one file to another Dstore with {@code REBALANCE_STORE <name> <size>}, in the form it
+     * is stored here. Returns false if the file is gone or the peer does not take it.
+     */
+    private static boolean sendFile(String fileFolder, String filename, int port, int timeout) {
+        File file = new File(fileFolder, filename);
+        ReadWriteLock lock = lockFor(filename);
+        DstoreManifest.FileRecord record;
+        FileChannel fileChannel;
+        lock.readLock().lock();
+        try {
+            record = inventory.get(filename);
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            System.out.println("Failed to send " + filename + " to Dstore " + port + ": " + e.getMessage());
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Sent without the lock, as in scrub(), so a slow peer never holds up a STORE or REMOVE of the file
+        try (fileChannel;
+             SocketChannel peer = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            Socket socket = peer.socket();
+            socket.setSoTimeout(timeout);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            long stored = fileChannel.size();
+            String contentHash = record != null ? record.contentHash : null;
+            boolean compressed = record != null && record.compressed;
+            out.println("REBALANCE_STORE " + filename + " " + (compressed ? record.size : stored)
+                    + (contentHash != null ? " sha256=" + contentHash : "")
+                    + (compressed ? " deflate=" + stored : record != null ? " crc32c=" + Long.toHexString(record.checksum) : ""));
+            String reply = in.readLine();
+            if ("ACK_LINKED".equals(reply)) {
+                return true; // the peer already had the bytes
+            } else if (!"ACK".equals(reply)) {
+                return false;
+            }
+            return transferFile(fileChannel, peer, 0, stored) == stored;
+        } catch (IOException e) {
+            System.out.println("Failed to send " + filename + " to Dstore " + port + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void handleClient(Socket clientSocket, String fileFolder, int timeout) {
         try (
                 clientSocket;
                 BufferedReader clientIn = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
                 PrintWriter clientOut = new PrintWriter(clientSocket.getOutputStream(), true)
         ) {
+            // Set by HELLO FRAMED from a pooling client: LOAD_DATA replies get a DATA <size> header and
+            // errors leave the connection open for the next request
+            boolean framed = false;
+            // Set by HELLO FRAMED DEFLATE: compressed files are sent as they are stored, for the client to inflate
+            boolean deflate = false;
             String clientLine;
             while ((clientLine = clientIn.readLine()) != null) {
                 System.out.println("Dstore received: " + clientLine);
 
-                if (clientLine.startsWith("STORE")) {
+                if (clientLine.startsWith("HELLO FRAMED")) {
+                    // HELLO FRAMED [<capability> ...]: the reply lists the capabilities both sides have
+                    framed = true;
+                    deflate = Arrays.asList(clientLine.split(" ")).contains("DEFLATE");
+                    clientSocket.setTcpNoDelay(true);
+                    clientOut.println(deflate ? "HELLO FRAMED DEFLATE" : "HELLO FRAMED");
+
+                } else if (clientLine.startsWith("STORE")) {
+                    // STORE <name> <size> [sha256=<hex>] [crc32c=<hex>] [deflate=<bytes>] [<next port> ...]: given
+                    // the hash of the content, a Dstore that already holds those bytes links the name to them and
+                    // answers ACK_LINKED instead of ACK, and no bytes follow. An uncompressed upload that does not
+                    // match its crc32c is refused. With deflate the client sends that many bytes of DeflateBlocks,
+                    // which are stored as they are. Any ports at the end are the rest of a replication chain, and
+                    // the file is forwarded to the first of them as it arrives
                     String[] parts = clientLine.split(" ");
-                    if (parts.length != 3) {
+                    if (parts.length < 3) {
                         System.out.println("Malformed STORE command");
                         return;
                     }
 
+                    if (!validChecksum(option(parts, "crc32c"))) {
+                        System.out.println("Malformed crc32c in STORE command");
+                        clientOut.println("ERROR_MALFORMED_REQUEST");
+                        return;
+                    }
+
                     String filename = parts[1];
-                    int filesize = Integer.parseInt(parts[2]);
-                    clientOut.println("ACK");
+                    long filesize = Long.parseLong(parts[2]);
+                    String contentHash = option(parts, "sha256");
+                    long compressedSize = compressedSize(parts);
+                    boolean chained = firstPort(parts) < parts.length;
+                    CompletableFuture<Void> arriving = null;
+                    if (contentHash != null && (arriving = linkOrClaim(fileFolder, filename, filesize, contentHash, timeout)) == null) {
+                        clientOut.println("ACK_LINKED");
+                        System.out.println("File " + filename + " stored as a link to existing content");
+                        PrintWriter out = controllerOut;
+                        out.println("STORE_ACK " + filename);
+                        out.flush();
+                        if (chained) {
+                            executorService.submit(() -> forwardLinked(fileFolder, filename, parts, timeout));
+                        }
+                        continue;
+                    }
 
-                    byte[] fileData = clientSocket.getInputStream().readNBytes(filesize);
+                    SocketChannel next = chained ? openChain(parts, timeout) : null;
+                    clientOut.println("ACK");
 
-                    synchronized (Dstore.class) {
-                        FileOutputStream fos = new FileOutputStream(new File(fileFolder, filename));
-                        fos.write(fileData);
-                        fos.close();
+                    DstoreManifest.FileRecord record;
+                    try {
+                        record = receiveFile(uploadSource(clientSocket, timeout), new File(fileFolder, filename), filesize, compressedSize,
+                                contentHash, option(parts, "crc32c"), next);
+                    } finally {
+                        clientSocket.setSoTimeout(0);
+                        if (next != null) {
+                            next.close();
+                        }
+                        if (arriving != null) {
+                            contentArriving.remove(contentHash.toLowerCase(), arriving);
+                            arriving.complete(null);
+                        }
+                    }
+                    if (record == null) {
+                        System.out.println("Store of " + filename + " failed: the client sent fewer than " + filesize
+                                + " bytes, bytes that do not match their hash or checksum, or malformed compressed blocks");
+                        return;
                     }
 
                     System.out.println("File " + filename + " stored");
-                    controllerOut.println("STORE_ACK " + filename);
-                    controllerOut.flush();
+                    PrintWriter out = controllerOut;
+                    out.println("STORE_ACK " + filename);
+                    out.flush();
+
+                } else if (clientLine.startsWith("REBALANCE_STORE")) {
+                    // A copy from another Dstore during rebalance; the Controller learns of it from that Dstore
+                    String[] parts = clientLine.split(" ");
+                    if (parts.length < 3 || firstPort(parts) != parts.length) {
+                        System.out.println("Malformed REBALANCE_STORE command");
+                        return;
+                    }
+                    if (!validChecksum(option(parts, "crc32c"))) {
+                        System.out.println("Malformed crc32c in REBALANCE_STORE command");
+                        clientOut.println("ERROR_MALFORMED_REQUEST");
+                        return;
+                    }
+
+                    String filename = parts[1];
+                    long filesize = Long.parseLong(parts[2]);
+                    String contentHash = option(parts, "sha256");
+                    if (contentHash != null && linkExisting(fileFolder, filename, filesize, contentHash)) {
+                        clientOut.println("ACK_LINKED");
+                        System.out.println("File " + filename + " from another Dstore linked to existing content");
+                        continue;
+                    }
+                    clientOut.println("ACK");
+
+                    DstoreManifest.FileRecord copied;
+                    try {
+                        copied = receiveFile(uploadSource(clientSocket, timeout), new File(fileFolder, filename), filesize,
+                                compressedSize(parts), contentHash, option(parts, "crc32c"), null);
+                    } finally {
+                        clientSocket.setSoTimeout(0);
+                    }
+                    if (copied == null) {
+                        System.out.println("Rebalance copy of " + filename + " was cut short");
+                        return;
+                    }
+                    System.out.println("File " + filename + " received from another Dstore");
 
                 } else if (clientLine.startsWith("LOAD_DATA")) {
+                    // LOAD_DATA <name> [<offset> <length>]: the range form sends only that slice,
+                    // cut short at the end of the file. A compressed file goes out as stored, with a
+                    // DATA <bytes> DEFLATE header, to a client that took DEFLATE and wants all of it;
+                    // anyone else gets the content inflated here. Whole files carry the CRC32C recorded
+                    // when they were stored, as crc32c=<hex> at the end of the header, for the client to check
                     String[] parts = clientLine.split(" ");
-                    if (parts.length != 2) {
+                    if (parts.length != 2 && parts.length != 4) {
                         System.out.println("Malformed LOAD_DATA command");
                         return;
                     }
 
                     String filename = parts[1];
                     File file = new File(fileFolder, filename);
-                    if (!file.exists()) {
-                        System.out.println("File not found: " + filename);
-                        clientOut.println("ERROR_FILE_DOES_NOT_EXIST");
-                        return;
+                    long offset = 0;
+                    long length = Long.MAX_VALUE;
+                    if (parts.length == 4) {
+                        offset = Long.parseLong(parts[2]);
+                        length = Long.parseLong(parts[3]);
+                        if (offset < 0 || length < 0) {
+                            System.out.println("Malformed LOAD_DATA command");
+                            return;
+                        }
                     }
 
-                    byte[] fileBytes;
-                    synchronized (Dstore.class) {
-                        FileInputStream fis = new FileInputStream(file);
-                        fileBytes = fis.readAllBytes();
-                        fis.close();
+                    long sent;
+                    long started = System.nanoTime();
+                    activeLoads.incrementAndGet();
+                    // Every way out of here, a missing file or a failed open or send included, ends the load
+                    try {
+                        ReadWriteLock lock = lockFor(filename);
+                        DstoreManifest.FileRecord record;
+                        boolean asStored;
+                        ByteBuffer cached;
+                        FileChannel opened;
+                        // Only the lookup and the open happen under the lock. The open channel and the cache
+                        // slice stay valid when a STORE or REMOVE replaces or unlinks the name, so a slow
+                        // reader never holds either of them up
+                        lock.readLock().lock();
+                        try {
+                            record = inventory.get(filename);
+                            // Bytes sent as they are stored come from the read cache when it has them
+                            asStored = record == null || !record.compressed || deflate && parts.length == 2;
+                            cached = readCache != null && record != null && asStored ? readCache.get(filename, record) : null;
+                            opened = cached == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+                        } catch (NoSuchFileException e) {
+                            System.out.println("File not found: " + filename);
+                            clientOut.println("ERROR_FILE_DOES_NOT_EXIST");
+                            if (framed) {
+                                continue;
+                            }
+                            return;
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                        try (FileChannel fileChannel = opened) {
+                            long stored = cached != null ? cached.capacity() : fileChannel.size();
+                            // A range of an uncompressed file carries the checksum of the whole file instead, as
+                            // file-crc32c=<hex>, for a client that fetches every range of it to check them together
+                            String checksum = record == null ? ""
+                                    : parts.length == 2 ? " crc32c=" + Long.toHexString(record.checksum)
+                                    : !record.compressed ? " file-crc32c=" + Long.toHexString(record.checksum) : "";
+                            if (record == null || !record.compressed) {
+                                long count = Math.min(length, Math.max(0, stored - offset));
+                                if (framed) {
+                                    clientOut.println("DATA " + count + checksum);
+                                }
+                                sent = cached != null ? sendBuffer(cached, offset, count, clientSocket.getChannel())
+                                        : transferFile(fileChannel, clientSocket.getChannel(), offset, count);
+                            } else if (asStored) {
+                                clientOut.println("DATA " + stored + " DEFLATE" + checksum);
+                                sent = cached != null ? sendBuffer(cached, 0, stored, clientSocket.getChannel())
+                                        : transferFile(fileChannel, clientSocket.getChannel(), 0, stored);
+                            } else {
+                                long count = Math.min(length, Math.max(0, record.size - offset));
+                                if (framed) {
+                                    clientOut.println("DATA " + count);
+                                }
+                                OutputStream content = new BufferedOutputStream(clientSocket.getOutputStream(), TRANSFER_BUFFER_SIZE);
+                                sent = DeflateBlocks.copyRange(fileChannel, offset, count, content);
+                                content.flush();
+                            }
+                            if (cached == null && readCache != null && record != null && asStored && readCache.accepts(stored)
+                                    && inventory.get(filename) == record) {
+                                // Straight after sending it, so the file is read from the page cache
+                                readCache.put(filename, record, readFully(fileChannel, stored));
+                            }
+                        }
+                        System.out.println("Sent file " + filename + " (" + sent + " bytes)");
+                    } finally {
+                        loadFinished(started);
                     }
 
-                    OutputStream rawOut = clientSocket.getOutputStream();
-                    rawOut.write(fileBytes);
-                    rawOut.flush();
-                    System.out.println("Sent file " + filename + " (" + fileBytes.length + " bytes)");
+                } else if (clientLine.equals("STATS")) {
+                    // STATS: how many files and bytes this Dstore holds, and how its read cache is doing
+                    long bytes = 0;
+                    for (DstoreManifest.FileRecord record : inventory.values()) {
+                        bytes += record.size;
+                    }
+                    clientOut.println("STATS files=" + inventory.size() + " bytes=" + bytes
+                            + (readCache != null ? " " + readCache.stats() : ""));
 
                 } else {
                     System.out.println("Unknown command: " + clientLine);
@@ -159,4 +767,526 @@ public class Dstore {
             System.out.println("Client communication error.");
         }
     }
+
+    private static void loadFinished(long started) {
+        activeLoads.decrementAndGet();
+        servedLoads.incrementAndGet();
+        long micros = (System.nanoTime() - started) / 1000;
+        synchronized (activeLoads) {
+            loadLatencyMicros = loadLatencyMicros == 0 ? Math.max(1, micros) : Math.max(1, (loadLatencyMicros * 4 + micros) / 5);
+        }
+    }
+
+    /**
+     * Sends {@code LOAD_REPORT <active> <latency micros>} every LOAD_REPORT_MILLIS while transfers
+     * come and go, and every tenth period when idle, so the Controller's replica selector stops
+     * counting clients it sent here that never turned up.
+     */
+    private static void reportLoadLoop() {
+        long lastServed = -1;
+        int lastActive = -1;
+        int quietPeriods = 0;
+        while (true) {
+            try {
+                Thread.sleep(LOAD_REPORT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long served = servedLoads.get();
+            int active = activeLoads.get();
+            if (served == lastServed && active == lastActive && ++quietPeriods < 10) {
+                continue;
+            }
+            long latency;
+            synchronized (activeLoads) {
+                latency = loadLatencyMicros;
+            }
+            PrintWriter out = controllerOut;
+            if (out != null) {
+                out.println("LOAD_REPORT " + active + " " + latency);
+            }
+            lastServed = served;
+            lastActive = active;
+            quietPeriods = 0;
+        }
+    }
+
+    /**
+     * Re-reads every stored file, at no more than SCRUB_RATE bytes a second, and compares its CRC32C
+     * with the one recorded when it was stored. A file that no longer matches is deleted and reported
+     * with {@code CORRUPT <name>}, so the Controller stops sending clients here for it and the next
+     * rebalance copies a good replica back.
+     */
+    private static void scrubLoop(String fileFolder) {
+        while (true) {
+            long start = System.currentTimeMillis();
+            int checked = 0;
+            int corrupt = 0;
+            for (String filename : new ArrayList<>(inventory.keySet())) {
+                checked++;
+                if (!scrub(fileFolder, filename)) {
+                    corrupt++;
+                }
+            }
+            if (checked > 0) {
+                System.out.println("Scrubbed " + checked + " files in " + (System.currentTimeMillis() - start) + " ms, "
+                        + corrupt + " corrupt");
+            }
+            try {
+                Thread.sleep(SCRUB_PAUSE_SECONDS * 1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Returns false if the file was corrupt and has been removed
+    private static boolean scrub(String fileFolder, String filename) {
+        File file = new File(fileFolder, filename);
+        ReadWriteLock lock = lockFor(filename);
+        DstoreManifest.FileRecord record;
+        FileChannel fileChannel;
+        lock.readLock().lock();
+        try {
+            record = inventory.get(filename);
+            if (record == null) {
+                return true;
+            }
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return true; // removed meanwhile
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Read without the lock: STORE and REMOVE replace or unlink the name, never the bytes this channel has open
+        long checksum;
+        try (fileChannel) {
+            checksum = pacedChecksum(fileChannel);
+        } catch (IOException e) {
+            System.out.println("Could not scrub " + filename + ": " + e.getMessage());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+        if (checksum == record.checksum) {
+            return true;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (inventory.get(filename) != record) {
+                return true; // stored again while it was being read
+            }
+            System.out.println("Corrupt copy of " + filename + ": CRC32C " + Long.toHexString(checksum)
+                    + ", stored with " + Long.toHexString(record.checksum));
+            deleteFile(fileFolder, filename);
+        } catch (IOException e) {
+            System.out.println("Could not remove corrupt copy of " + filename + ": " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        PrintWriter out = controllerOut;
+        out.println("CORRUPT " + filename);
+        out.flush();
+        return false;
+    }
+
+    private static long pacedChecksum(FileChannel fileChannel) throws IOException, InterruptedException {
+        ByteBuffer buffer = acquireBuffer();
+        CRC32C checksum = new CRC32C();
+        long start = System.nanoTime();
+        long read = 0;
+        try {
+            while (true) {
+                buffer.clear();
+                int n = fileChannel.read(buffer, read);
+                if (n < 0) {
+                    return checksum.getValue();
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                read += n;
+                long ahead = (long) (read * 1e9 / SCRUB_RATE) - (System.nanoTime() - start);
+                if (ahead > 0) {
+                    Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000));
+                }
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Sends {@code count} bytes of the file starting at {@code position} with transferTo, so the
+     * kernel copies straight from the page cache to the socket without a heap buffer.
+     */
+    private static long transferFile(FileChannel fileChannel, WritableByteChannel target, long position, long count) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long n = fileChannel.transferTo(position + sent, count - sent, target);
+            if (n <= 0 && position + sent >= fileChannel.size()) {
+                break; // file was truncated under us
+            }
+            sent += n;
+        }
+        return sent;
+    }
+
+    // Sends count bytes of a cached file starting at position, cut short at the end of the file
+    private static long sendBuffer(ByteBuffer bytes, long position, long count, WritableByteChannel target) throws IOException {
+        int start = (int) Math.min(position, bytes.capacity());
+        int end = (int) Math.min(bytes.capacity(), start + Math.min(count, bytes.capacity()));
+        if (end == start) {
+            return 0;
+        }
+        ByteBuffer slice = bytes.duplicate();
+        slice.limit(end).position(start);
+        long sent = 0;
+        while (slice.hasRemaining()) {
+            sent += target.write(slice);
+        }
+        return sent;
+    }
+
+    private static ByteBuffer readFully(FileChannel fileChannel, long size) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocateDirect((int) size);
+        while (bytes.hasRemaining() && fileChannel.read(bytes, bytes.position()) >= 0) {
+        }
+        return bytes.flip();
+    }
+
+    /**
+     * Opens the connection to the next Dstore of a STORE chain, passing on the options and the ports
+     * after it, and waits for its ACK. Returns null if the next Dstore cannot be reached; the
+     * file is then only stored here and the Controller sees the missing STORE_ACKs. Also returns null
+     * if the next Dstore answers ACK_LINKED: it already holds the bytes and carries on down the chain
+     * itself.
+     */
+    private static SocketChannel openChain(String[] parts, int timeout) {
+        int first = firstPort(parts);
+        int port = Integer.parseInt(parts[first]);
+        StringBuilder message = new StringBuilder("STORE");
+        for (int i = 1; i < parts.length; i++) {
+            if (i != first) {
+                message.append(' ').append(parts[i]);
+            }
+        }
+
+        SocketChannel next = null;
+        try {
+            next = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            Socket socket = next.socket();
+            socket.setSoTimeout(timeout);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.println(message);
+            String reply = in.readLine();
+            if ("ACK".equals(reply)) {
+                return next;
+            } else if ("ACK_LINKED".equals(reply)) {
+                System.out.println("Dstore " + port + " already holds the content of " + parts[1]);
+            } else {
+                System.out.println("Dstore " + port + " refused chained STORE of " + parts[1]);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not reach next Dstore " + port + " for " + parts[1] + ": " + e.getMessage());
+        }
+        if (next != null) {
+            try {
+                next.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Where an upload is read from: the socket's stream rather than its channel, since reads on a
+     * blocking channel ignore SO_TIMEOUT and a client that stalled mid-upload would hold this thread
+     * and its .part file for good. The timeout applies until the caller resets it, as a pooled
+     * connection may sit idle between requests.
+     */
+    private static ReadableByteChannel uploadSource(Socket socket, int timeout) throws IOException {
+        socket.setSoTimeout(timeout);
+        return Channels.newChannel(socket.getInputStream());
+    }
+
+    // A crc32c=<hex> option, when there is one, must be a 64-bit hex number
+    private static boolean validChecksum(String hex) {
+        if (hex == null) {
+            return true;
+        }
+        try {
+            Long.parseUnsignedLong(hex, 16);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Streams {@code size} bytes from the client into a temporary file beside the target, then
+     * renames it into place. LOAD_DATA therefore only ever sees complete files. Returns null, and
+     * removes the temporary file, if the connection ends before all bytes arrive. Each chunk is also
+     * written to {@code forward}, when given, before it is written locally; if forwarding fails the
+     * file is still stored here. Given a {@code contentHash}, the bytes must match it or the file is
+     * not stored either, and the same goes for an {@code expectedChecksum} (CRC32C, hex). A
+     * {@code compressedSize} of 0 or more means that many bytes of DeflateBlocks arrive instead, which
+     * must hold exactly {@code size} bytes of content; their checksum is not checked here, as every
+     * block carries its own Adler-32 that is checked whenever it is inflated.
+     */
+    private static DstoreManifest.FileRecord receiveFile(ReadableByteChannel source, File target, long size, long compressedSize,
+                                                         String contentHash, String expectedChecksum,
+                                                         WritableByteChannel forward) throws IOException {
+        Path temp = Files.createTempFile(target.getParentFile().toPath(), "." + target.getName() + ".", ".part");
+        ByteBuffer buffer = acquireBuffer();
+        CRC32C checksum = new CRC32C();
+        boolean compressed = compressedSize >= 0;
+        long length = compressed ? compressedSize : size;
+        MessageDigest digest = contentHash != null ? sha256() : null;
+        boolean complete = false;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long received = 0;
+            while (received < length) {
+                buffer.clear();
+                if (length - received < buffer.capacity()) {
+                    buffer.limit((int) (length - received));
+                }
+                int n = source.read(buffer);
+                if (n == -1) {
+                    return null;
+                }
+                buffer.flip();
+                checksum.update(buffer.duplicate());
+                if (digest != null && !compressed) {
+                    digest.update(buffer.duplicate());
+                }
+                if (forward != null) {
+                    try {
+                        ByteBuffer chunk = buffer.duplicate();
+                        while (chunk.hasRemaining()) {
+                            forward.write(chunk);
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Forwarding " + target.getName() + " down the chain failed: " + e.getMessage());
+                        forward = null;
+                    }
+                }
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                received += n;
+            }
+            if (compressed) {
+                // Reads back what was just written, so this comes from the page cache
+                complete = DeflateBlocks.contentSize(out) == size && (digest == null
+                        || DeflateBlocks.copyRange(out, 0, size, new DigestOutputStream(OutputStream.nullOutputStream(), digest)) == size);
+            } else {
+                complete = expectedChecksum == null || Long.parseUnsignedLong(expectedChecksum, 16) == checksum.getValue();
+            }
+            complete &= digest == null || HexFormat.of().formatHex(digest.digest()).equalsIgnoreCase(contentHash);
+        } finally {
+            releaseBuffer(buffer);
+            if (!complete) {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        if (!complete) {
+            return null;
+        }
+
+        DstoreManifest.FileRecord record = new DstoreManifest.FileRecord(size, checksum.getValue(),
+                contentHash != null ? contentHash.toLowerCase() : null, compressed);
+        ReadWriteLock lock = lockFor(target.getName());
+        lock.writeLock().lock();
+        try {
+            Files.move(temp, target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            recordFile(target.getName(), record);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return record;
+    }
+
+    /**
+     * Stores {@code filename} as one more name for bytes this Dstore already holds: a hard link to a
+     * file of the same size and SHA-256, so nothing is received or written. Returns false when there
+     * is no such file or the file system cannot link, and the bytes have to be sent after all.
+     */
+    private static boolean linkExisting(String fileFolder, String filename, long size, String contentHash) {
+        String key = contentHash.toLowerCase();
+        for (String existing : namesByContent.getOrDefault(key, Set.of())) {
+            DstoreManifest.FileRecord record = inventory.get(existing);
+            if (record == null || record.size != size) {
+                continue;
+            }
+            File target = new File(fileFolder, filename);
+            ReadWriteLock lock = lockFor(filename);
+            lock.writeLock().lock();
+            try {
+                Path temp = target.toPath().resolveSibling("." + filename + "." + System.nanoTime() + ".part");
+                // Fails if the existing name is removed meanwhile; then try the next one
+                Files.createLink(temp, new File(fileFolder, existing).toPath());
+                Files.move(temp, target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                recordFile(filename, record);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                System.out.println("Could not link " + filename + " to " + existing + ": " + e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * For a STORE with a content hash: links the name to those bytes if they are here, first waiting
+     * up to the timeout when another connection is receiving them right now. Returns null once
+     * linked; otherwise the bytes must be received, and the caller completes the returned future
+     * afterwards so that STOREs waiting on it can link.
+     */
+    private static CompletableFuture<Void> linkOrClaim(String fileFolder, String filename, long size, String contentHash, int timeout) {
+        String key = contentHash.toLowerCase();
+        CompletableFuture<Void> mine = new CompletableFuture<>();
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (linkExisting(fileFolder, filename, size, contentHash)) {
+                return null;
+            }
+            CompletableFuture<Void> other = contentArriving.putIfAbsent(key, mine);
+            if (other == null) {
+                return mine;
+            }
+            try {
+                other.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return mine; // not registered, so nobody waits on it
+    }
+
+    // Sends a file this Dstore linked instead of receiving on down the rest of its chain, in the
+    // form it is stored here, which need not be the form the client offered
+    private static void forwardLinked(String fileFolder, String filename, String[] parts, int timeout) {
+        ReadWriteLock lock = lockFor(filename);
+        DstoreManifest.FileRecord record;
+        FileChannel opened;
+        lock.readLock().lock();
+        try {
+            record = inventory.get(filename);
+            opened = FileChannel.open(new File(fileFolder, filename).toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            System.out.println("Forwarding " + filename + " down the chain failed: " + e.getMessage());
+            return;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try (FileChannel fileChannel = opened) {
+            List<String> message = new ArrayList<>(List.of(parts[0], parts[1], parts[2]));
+            if (record != null && record.compressed) {
+                message.add("deflate=" + fileChannel.size());
+            }
+            for (int i = 3; i < parts.length; i++) {
+                if (!parts[i].startsWith("deflate=")) {
+                    message.add(parts[i]);
+                }
+            }
+            SocketChannel next = openChain(message.toArray(new String[0]), timeout);
+            if (next == null) {
+                return;
+            }
+            try (next) {
+                transferFile(fileChannel, next, 0, fileChannel.size());
+            }
+        } catch (IOException e) {
+            System.out.println("Forwarding " + filename + " down the chain failed: " + e.getMessage());
+        }
+    }
+
+    // Adds a stored file to the inventory and the manifest. Caller holds the file's write lock.
+    private static void recordFile(String filename, DstoreManifest.FileRecord record) throws IOException {
+        removeContentName(filename, inventory.put(filename, record));
+        if (readCache != null) {
+            readCache.invalidate(filename);
+        }
+        addContentName(filename, record);
+        if (manifest != null) {
+            manifest.added(filename, record);
+        }
+    }
+
+    private static void addContentName(String filename, DstoreManifest.FileRecord record) {
+        if (record.contentHash != null) {
+            namesByContent.compute(record.contentHash, (k, names) -> {
+                Set<String> updated = names != null ? names : ConcurrentHashMap.newKeySet();
+                updated.add(filename);
+                return updated;
+            });
+        }
+    }
+
+    private static void removeContentName(String filename, DstoreManifest.FileRecord record) {
+        if (record != null && record.contentHash != null) {
+            namesByContent.computeIfPresent(record.contentHash, (k, names) -> {
+                names.remove(filename);
+                return names.isEmpty() ? null : names;
+            });
+        }
+    }
+
+    // The <key>=<value> option of a STORE or REBALANCE_STORE line, or null; options follow the size
+    private static String option(String[] parts, String key) {
+        for (int i = 3; i < firstPort(parts); i++) {
+            if (parts[i].startsWith(key + "=")) {
+                return parts[i].substring(key.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    // The deflate=<bytes> option of a STORE or REBALANCE_STORE line, or -1 for an uncompressed upload
+    private static long compressedSize(String[] parts) {
+        String compressedSize = option(parts, "deflate");
+        return compressedSize != null ? Long.parseLong(compressedSize) : -1;
+    }
+
+    // Index of the first chain port of a STORE line, or its length if it has none
+    private static int firstPort(String[] parts) {
+        int i = 3;
+        while (i < parts.length && parts[i].indexOf('=') > 0) {
+            i++;
+        }
+        return i;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static ReadWriteLock lockFor(String filename) {
+        return fileLocks[Math.floorMod(filename.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        // Loose bound: a few extra buffers under contention are fine, they are just left to the GC
+        if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+            bufferPool.offer(buffer);
+        }
+    }
 }
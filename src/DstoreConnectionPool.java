@@ -0,0 +1,213 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive connections from a client to the Dstores, so small STOREs and LOADs do not each pay
+ * for a TCP handshake. Each new connection opens with {@code HELLO FRAMED DEFLATE}, after which the
+ * Dstore precedes LOAD_DATA bytes with {@code DATA <size>} and answers errors without closing, so
+ * the connection is still usable after any complete request. A Dstore that repeats {@code DEFLATE}
+ * takes compressed uploads and may send files in their compressed form.
+ *
+ * <p>A connection is borrowed for one request at a time and released once the request has been
+ * fully read, or discarded if anything went wrong part way through. Connections idle for more
+ * than a second are probed before reuse, and ones idle longer than {@code idleMillis} are closed.
+ */
+class DstoreConnectionPool {
+
+    private static final long PROBE_AFTER_MILLIS = 1000;
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dstore-pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int timeout;
+    private final long idleMillis;
+    private final int maxIdlePerDstore;
+    private final Map<Integer, Deque<Connection>> idle = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> eviction;
+
+    static class Connection {
+        final int port;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        // The Dstore takes and sends DeflateBlocks on this connection
+        boolean deflate;
+        private long lastUsed;
+
+        private Connection(int port, Socket socket) throws IOException {
+            this.port = port;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void sendLine(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        /**
+         * Reads one line without reading past it, so the bytes after a {@code DATA} header stay in
+         * {@link #in}. Returns null at end of stream.
+         */
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        private boolean isAlive() {
+            if (socket.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - lastUsed < PROBE_AFTER_MILLIS) {
+                return true;
+            }
+            // A quiet connection should have nothing to read: a timeout means it is open, anything
+            // else means the Dstore closed it or the stream is out of step
+            try {
+                socket.setSoTimeout(1);
+                in.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    DstoreConnectionPool(int timeout, long idleMillis, int maxIdlePerDstore) {
+        this.timeout = timeout;
+        this.idleMillis = idleMillis;
+        this.maxIdlePerDstore = maxIdlePerDstore;
+        this.eviction = evictor.scheduleWithFixedDelay(this::evictIdle, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a framed connection to the Dstore on {@code port}, reusing an idle one when it is
+     * still healthy.
+     */
+    Connection borrow(int port) throws IOException {
+        Deque<Connection> connections = idle.get(port);
+        if (connections != null) {
+            while (true) {
+                Connection connection;
+                synchronized (connections) {
+                    connection = connections.pollFirst();
+                }
+                if (connection == null) {
+                    break;
+                }
+                if (connection.isAlive()) {
+                    connection.socket.setSoTimeout(timeout);
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return open(port);
+    }
+
+    private Connection open(int port) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        Connection connection = new Connection(port, socket);
+        try {
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+            ClientLogger.getInstance().connectionEstablished(port);
+            connection.sendLine("HELLO FRAMED DEFLATE");
+            String reply = connection.readLine();
+            if (reply == null || !reply.startsWith("HELLO FRAMED")) {
+                throw new IOException("Dstore " + port + " does not support framed connections: " + reply);
+            }
+            connection.deflate = reply.equals("HELLO FRAMED DEFLATE");
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection whose last request completed cleanly.
+     */
+    void release(Connection connection) {
+        connection.lastUsed = System.currentTimeMillis();
+        Deque<Connection> connections = idle.computeIfAbsent(connection.port, k -> new ArrayDeque<>());
+        synchronized (connections) {
+            if (connections.size() < maxIdlePerDstore) {
+                // Most recently used first, so a burst leaves the older extras to be evicted
+                connections.addFirst(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Closes a connection that failed or was left part way through a request.
+     */
+    void discard(Connection connection) {
+        connection.close();
+    }
+
+    /**
+     * Stops eviction and closes every idle connection. Connections still borrowed are closed by
+     * whoever holds them.
+     */
+    void close() {
+        eviction.cancel(false);
+        for (Deque<Connection> connections : idle.values()) {
+            synchronized (connections) {
+                for (Connection connection : connections) {
+                    connection.close();
+                }
+                connections.clear();
+            }
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        for (Deque<Connection> connections : idle.values()) {
+            synchronized (connections) {
+                connections.removeIf(connection -> {
+                    if (connection.lastUsed < cutoff) {
+                        connection.close();
+                        return true;
+                    }
+                    return false;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent list of the files a Dstore holds, kept in its file folder so a restarted Dstore knows
+ * its inventory without listing or reading the folder. The manifest is an append-only journal of
+ * {@code + <name> <size> <crc32c hex> [<sha256 hex>] [deflate]} and {@code - <name>} lines,
+ * compacted every time it is loaded. The SHA-256 is only there for files stored with a content
+ * hash, which other names with the same content can link to, and {@code deflate} marks a file kept
+ * in its compressed form, whose size is still that of the content and whose checksum is of the
+ * bytes on disk.
+ */
+class DstoreManifest {
+
+    static final String NAME = ".manifest";
+
+    static class FileRecord {
+        final long size;
+        final long checksum;
+        // Null unless the file was stored with a content hash
+        final String contentHash;
+        // Stored as DeflateBlocks rather than as the content itself
+        final boolean compressed;
+
+        FileRecord(long size, long checksum) {
+            this(size, checksum, null, false);
+        }
+
+        FileRecord(long size, long checksum, String contentHash, boolean compressed) {
+            this.size = size;
+            this.checksum = checksum;
+            this.contentHash = contentHash;
+            this.compressed = compressed;
+        }
+    }
+
+    private final Path path;
+    private final ReentrantLock lock = new ReentrantLock();
+    private Writer writer;
+
+    private DstoreManifest(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Loads the manifest in {@code folder} into {@code inventory}, rewrites it without the
+     * superseded lines and opens it for appending.
+     */
+    static DstoreManifest open(Path folder, Map<String, FileRecord> inventory) throws IOException {
+        DstoreManifest manifest = new DstoreManifest(folder.resolve(NAME));
+        if (Files.exists(manifest.path)) {
+            try (BufferedReader in = Files.newBufferedReader(manifest.path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    if (parts[0].equals("+") && parts.length >= 4 && parts.length <= 6) {
+                        String contentHash = null;
+                        boolean compressed = false;
+                        for (int i = 4; i < parts.length; i++) {
+                            if (parts[i].equals("deflate")) {
+                                compressed = true;
+                            } else {
+                                contentHash = parts[i];
+                            }
+                        }
+                        inventory.put(parts[1], new FileRecord(Long.parseLong(parts[2]), Long.parseUnsignedLong(parts[3], 16),
+                                contentHash, compressed));
+                    } else if (parts[0].equals("-") && parts.length == 2) {
+                        inventory.remove(parts[1]);
+                    }
+                    // Anything else is a line torn by a crash mid-append; skip it
+                }
+            }
+        }
+
+        Path temp = folder.resolve(NAME + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, FileRecord> entry : inventory.entrySet()) {
+                out.write(addLine(entry.getKey(), entry.getValue()));
+            }
+        }
+        Files.move(temp, manifest.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        manifest.writer = Files.newBufferedWriter(manifest.path, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        return manifest;
+    }
+
+    void added(String filename, FileRecord record) throws IOException {
+        append(addLine(filename, record));
+    }
+
+    void removed(String filename) throws IOException {
+        append("- " + filename + "\n");
+    }
+
+    private void append(String line) throws IOException {
+        lock.lock();
+        try {
+            writer.write(line);
+            writer.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String addLine(String filename, FileRecord record) {
+        return "+ " + filename + " " + record.size + " " + Long.toHexString(record.checksum)
+                + (record.contentHash != null ? " " + record.contentHash : "")
+                + (record.compressed ? " deflate" : "") + "\n";
+    }
+}
@@ -0,0 +1,317 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Durable copy of the Controller index. Every index state transition is appended to a write-ahead
+ * log as the full state of the file it touched, so replaying records in order always ends at the
+ * latest state. A single writer thread group-commits whatever is queued with one write and one
+ * fsync, and every so often the log is rotated and the index written out as a compact snapshot.
+ *
+ * <p>On disk: {@code snapshot} (header {@code SNAPSHOT <first segment>} then one PUT per file) and
+ * segments {@code wal-<n>.log}. Each line is {@code <crc32 hex> <record>}; a line whose checksum
+ * does not match is a torn write and ends replay of that segment. A PUT for a chunked file or one
+ * of its blocks ends with {@code blocks=<block size>} or {@code parent=<file>}; an erasure coded
+ * file adds {@code ec=<data shards>+<parity shards>} after its shard size.
+ */
+class MetadataLog {
+
+    private static final String SNAPSHOT = "snapshot";
+    private static final int MAX_BATCH = 4096;
+
+    private final Path dir;
+    private final Map<String, Controller.FileInfo> index;
+    private final long snapshotEvery;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor();
+
+    // Only touched by the writer thread
+    private FileChannel segment;
+    private long segmentNumber;
+    private long recordsSinceSnapshot;
+    private Future<?> snapshotInProgress;
+
+    private static class Entry {
+        final String record; // null asks the writer to take a snapshot
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Entry(String record) {
+            this.record = record;
+        }
+    }
+
+    private MetadataLog(Path dir, Map<String, Controller.FileInfo> index, long snapshotEvery) {
+        this.dir = dir;
+        this.index = index;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    /**
+     * Replays the snapshot and log tail in {@code dir} into {@code index}, then starts the writer.
+     */
+    static MetadataLog open(Path dir, Map<String, Controller.FileInfo> index, long snapshotEvery, long snapshotPeriodSeconds) throws IOException {
+        Files.createDirectories(dir);
+        MetadataLog log = new MetadataLog(dir, index, snapshotEvery);
+        long start = System.currentTimeMillis();
+        long lastSegment = log.replay();
+        System.out.println("Recovered " + index.size() + " files from " + dir + " in " + (System.currentTimeMillis() - start) + " ms");
+
+        // Always continue in a fresh segment rather than appending after a possibly torn tail
+        log.openSegment(lastSegment + 1);
+        Thread writer = new Thread(log::writeLoop, "metadata-log");
+        writer.setDaemon(true);
+        writer.start();
+
+        if (snapshotPeriodSeconds > 0) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metadata-snapshot-timer");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleAtFixedRate(log::requestSnapshot, snapshotPeriodSeconds, snapshotPeriodSeconds, TimeUnit.SECONDS);
+        }
+        return log;
+    }
+
+    /**
+     * Logs the current state of {@code info}. The future completes once the record is on disk.
+     */
+    CompletableFuture<Void> put(Controller.FileInfo info) {
+        return append(format(info));
+    }
+
+    CompletableFuture<Void> delete(String filename) {
+        return append("DEL " + filename);
+    }
+
+    void requestSnapshot() {
+        queue.add(new Entry(null));
+    }
+
+    private CompletableFuture<Void> append(String record) {
+        Entry entry = new Entry(record);
+        queue.add(entry);
+        return entry.done;
+    }
+
+    private static String format(Controller.FileInfo info) {
+        synchronized (info) {
+            List<Integer> dstores = info.getDstores();
+            StringBuilder ports = new StringBuilder();
+            if (dstores != null) {
+                for (int port : dstores) {
+                    if (ports.length() > 0) {
+                        ports.append(',');
+                    }
+                    ports.append(port);
+                }
+            }
+            String record = "PUT " + info.getFilename() + " " + info.getFileSize() + " " + info.getStatus() + " "
+                    + (ports.length() == 0 ? "-" : ports);
+            if (info.getBlockSize() > 0) {
+                record += " blocks=" + info.getBlockSize();
+                if (info.getDataShards() > 0) {
+                    record += " ec=" + info.getDataShards() + "+" + info.getParityShards();
+                }
+            } else if (info.getParent() != null) {
+                record += " parent=" + info.getParent();
+            }
+            return record;
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH);
+
+                StringBuilder out = new StringBuilder();
+                boolean snapshotRequested = false;
+                for (Entry entry : batch) {
+                    if (entry.record == null) {
+                        snapshotRequested = true;
+                    } else {
+                        out.append(checksum(entry.record)).append(' ').append(entry.record).append('\n');
+                    }
+                }
+
+                if (out.length() > 0) {
+                    ByteBuffer bytes = ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.UTF_8));
+                    while (bytes.hasRemaining()) {
+                        segment.write(bytes);
+                    }
+                    segment.force(false);
+                }
+                for (Entry entry : batch) {
+                    entry.done.complete(null);
+                }
+
+                recordsSinceSnapshot += batch.size();
+                if (snapshotRequested || recordsSinceSnapshot >= snapshotEvery) {
+                    startSnapshot();
+                }
+            } catch (IOException e) {
+                System.out.println("Metadata log write failed: " + e.getMessage());
+                for (Entry entry : batch) {
+                    entry.done.completeExceptionally(e);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Rotates to a new segment and writes the snapshot in the background. Every index change
+     * logged before the rotation happened before the snapshot scan starts, so the snapshot plus the
+     * segments from the new one onward hold the whole history.
+     */
+    private void startSnapshot() throws IOException {
+        if (snapshotInProgress != null && !snapshotInProgress.isDone()) {
+            return;
+        }
+        long firstSegment = segmentNumber + 1;
+        openSegment(firstSegment);
+        recordsSinceSnapshot = 0;
+        snapshotInProgress = snapshotExecutor.submit(() -> {
+            try {
+                writeSnapshot(firstSegment);
+            } catch (IOException e) {
+                System.out.println("Metadata snapshot failed: " + e.getMessage());
+            }
+        });
+    }
+
+    private void writeSnapshot(long firstSegment) throws IOException {
+        Path temp = dir.resolve(SNAPSHOT + ".tmp");
+        int files = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), 1 << 16)) {
+            writer.write("SNAPSHOT " + firstSegment + "\n");
+            for (Controller.FileInfo info : index.values()) {
+                String record = format(info);
+                writer.write(checksum(record) + " " + record + "\n");
+                files++;
+            }
+            writer.flush();
+            channel.force(false);
+        }
+        Files.move(temp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (long n : segmentNumbers()) {
+            if (n < firstSegment) {
+                Files.deleteIfExists(segmentPath(n));
+            }
+        }
+        System.out.println("Metadata snapshot written (" + files + " files), log continues at segment " + firstSegment);
+    }
+
+    private void openSegment(long number) throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        segmentNumber = number;
+        segment = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Loads the snapshot and applies every later segment in order. Returns the highest segment
+     * number found, or 0 if there is none.
+     */
+    private long replay() throws IOException {
+        long firstSegment = 0;
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            try (BufferedReader in = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+                String header = in.readLine();
+                if (header == null || !header.startsWith("SNAPSHOT ")) {
+                    throw new IOException("Corrupt metadata snapshot header: " + header);
+                }
+                firstSegment = Long.parseLong(header.substring("SNAPSHOT ".length()));
+                applyAll(in, snapshot);
+            }
+        }
+
+        long lastSegment = firstSegment;
+        for (long n : segmentNumbers()) {
+            lastSegment = Math.max(lastSegment, n);
+            if (n >= firstSegment) {
+                try (BufferedReader in = Files.newBufferedReader(segmentPath(n), StandardCharsets.UTF_8)) {
+                    applyAll(in, segmentPath(n));
+                }
+            }
+        }
+        return lastSegment;
+    }
+
+    private void applyAll(BufferedReader in, Path source) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            int space = line.indexOf(' ');
+            String record = space < 0 ? "" : line.substring(space + 1);
+            if (space < 0 || !line.substring(0, space).equals(checksum(record))) {
+                System.out.println("Ignoring torn metadata record at end of " + source.getFileName());
+                return;
+            }
+            apply(record);
+        }
+    }
+
+    private void apply(String record) {
+        String[] parts = record.split(" ");
+        if (parts[0].equals("DEL")) {
+            index.remove(parts[1]);
+            return;
+        }
+        Controller.FileInfo info = new Controller.FileInfo(parts[1], Long.parseLong(parts[2]));
+        info.setStatus(Controller.FileStatus.valueOf(parts[3]));
+        List<Integer> dstores = new ArrayList<>();
+        if (!parts[4].equals("-")) {
+            for (String port : parts[4].split(",")) {
+                dstores.add(Integer.parseInt(port));
+            }
+        }
+        info.setDstores(dstores);
+        if (parts.length > 5 && parts[5].startsWith("blocks=")) {
+            info.setBlockSize(Long.parseLong(parts[5].substring("blocks=".length())));
+        } else if (parts.length > 5 && parts[5].startsWith("parent=")) {
+            info.setParent(parts[5].substring("parent=".length()));
+        }
+        if (parts.length > 6 && parts[6].startsWith("ec=")) {
+            String[] code = parts[6].substring("ec=".length()).split("\\+");
+            info.setShards(Integer.parseInt(code[0]), Integer.parseInt(code[1]));
+        }
+        index.put(parts[1], info);
+    }
+
+    private List<Long> segmentNumbers() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(4, name.length() - 4)));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private Path segmentPath(long number) {
+        return dir.resolve("wal-" + number + ".log");
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
@@ -0,0 +1,224 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Whole files held in direct buffers outside the heap, up to a byte budget, so a Dstore serves its
+ * hot files without touching the disk. Eviction is W-TinyLFU weighted by size: a new file enters a
+ * small LRU window, and when it leaves the window it only displaces files from the main area if a
+ * frequency sketch says it has been asked for more often than they have. The main area is a
+ * segmented LRU, where a second hit moves a file from probation to protected, so one pass over many
+ * cold files cannot flush the hot ones.
+ *
+ * <p>Entries are keyed by name and tagged with the inventory record they were read for; a lookup
+ * with any other record misses, and the Dstore also invalidates a name whenever it stores or
+ * removes it.
+ */
+class ReadCache {
+
+    private static final int SKETCH_DEPTH = 4;
+
+    private static class Entry {
+        final DstoreManifest.FileRecord record;
+        final ByteBuffer bytes;
+
+        Entry(DstoreManifest.FileRecord record, ByteBuffer bytes) {
+            this.record = record;
+            this.bytes = bytes;
+        }
+
+        long size() {
+            return bytes.capacity();
+        }
+    }
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final long maxEntry;
+
+    // Least recently used first
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> protectedArea = new LinkedHashMap<>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    // Count-min sketch of 4-bit counters, halved every sampleSize accesses so old popularity fades
+    private final byte[][] sketch;
+    private final int sketchMask;
+    private final int sampleSize;
+    private int accesses;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    ReadCache(long capacity) {
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (capacity - windowCapacity) * 8 / 10;
+        // A single file may take at most an eighth of the cache
+        this.maxEntry = Math.min(capacity / 8, Integer.MAX_VALUE - 8);
+
+        int width = Integer.highestOneBit((int) Math.min(1 << 20, Math.max(1024, capacity / 4096)));
+        this.sketch = new byte[SKETCH_DEPTH][width];
+        this.sketchMask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * Returns a read-only view of the cached bytes of {@code filename}, or null if they are not
+     * cached for {@code record}. Counts towards the file's popularity either way.
+     */
+    synchronized ByteBuffer get(String filename, DstoreManifest.FileRecord record) {
+        recordAccess(filename);
+        Entry entry = lookup(filename);
+        if (entry == null || entry.record != record) {
+            if (entry != null) {
+                remove(filename); // left over from an earlier version of the file
+            }
+            misses++;
+            return null;
+        }
+        if (window.remove(filename) != null) {
+            window.put(filename, entry);
+        } else if (probation.remove(filename) != null) {
+            probationBytes -= entry.size();
+            protectedArea.put(filename, entry);
+            protectedBytes += entry.size();
+            demoteProtected();
+        } else {
+            protectedArea.remove(filename);
+            protectedArea.put(filename, entry);
+        }
+        hits++;
+        return entry.bytes.asReadOnlyBuffer();
+    }
+
+    // Whether a file of this size is worth reading in after a miss
+    boolean accepts(long size) {
+        return size <= maxEntry;
+    }
+
+    /**
+     * Adds the bytes of {@code filename}, as read for {@code record}, to the window. Files that the
+     * window pushes out then have to win their place in the main area.
+     */
+    synchronized void put(String filename, DstoreManifest.FileRecord record, ByteBuffer bytes) {
+        if (!accepts(bytes.capacity())) {
+            return;
+        }
+        remove(filename);
+        Entry entry = new Entry(record, bytes);
+        window.put(filename, entry);
+        windowBytes += entry.size();
+
+        while (windowBytes > windowCapacity && !window.isEmpty()) {
+            Iterator<Map.Entry<String, Entry>> oldest = window.entrySet().iterator();
+            Map.Entry<String, Entry> candidate = oldest.next();
+            oldest.remove();
+            windowBytes -= candidate.getValue().size();
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    synchronized void invalidate(String filename) {
+        remove(filename);
+    }
+
+    synchronized String stats() {
+        return "cache_bytes=" + (windowBytes + probationBytes + protectedBytes)
+                + " cache_entries=" + (window.size() + probation.size() + protectedArea.size())
+                + " cache_hits=" + hits + " cache_misses=" + misses + " cache_evictions=" + evictions;
+    }
+
+    // A file leaving the window takes the place of less popular files in probation, or is dropped
+    private void admit(String filename, Entry candidate) {
+        long mainCapacity = capacity - windowCapacity;
+        int candidateFrequency = frequency(filename);
+        while (probationBytes + protectedBytes + candidate.size() > mainCapacity) {
+            LinkedHashMap<String, Entry> victims = !probation.isEmpty() ? probation : protectedArea;
+            Map.Entry<String, Entry> victim = victims.entrySet().iterator().next();
+            if (frequency(victim.getKey()) >= candidateFrequency) {
+                evictions++;
+                return;
+            }
+            remove(victim.getKey());
+            evictions++;
+        }
+        probation.put(filename, candidate);
+        probationBytes += candidate.size();
+    }
+
+    // Moves the least recently used protected files back to probation once protected is over its share
+    private void demoteProtected() {
+        while (protectedBytes > protectedCapacity && protectedArea.size() > 1) {
+            Iterator<Map.Entry<String, Entry>> oldest = protectedArea.entrySet().iterator();
+            Map.Entry<String, Entry> demoted = oldest.next();
+            oldest.remove();
+            protectedBytes -= demoted.getValue().size();
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().size();
+        }
+    }
+
+    private Entry lookup(String filename) {
+        Entry entry = window.get(filename);
+        if (entry == null) {
+            entry = probation.get(filename);
+        }
+        return entry != null ? entry : protectedArea.get(filename);
+    }
+
+    private void remove(String filename) {
+        Entry entry;
+        if ((entry = window.remove(filename)) != null) {
+            windowBytes -= entry.size();
+        } else if ((entry = probation.remove(filename)) != null) {
+            probationBytes -= entry.size();
+        } else if ((entry = protectedArea.remove(filename)) != null) {
+            protectedBytes -= entry.size();
+        }
+    }
+
+    private void recordAccess(String filename) {
+        int hash = spread(filename.hashCode());
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            int i = indexOf(hash, row);
+            if (sketch[row][i] < 15) {
+                sketch[row][i]++;
+            }
+        }
+        if (++accesses >= sampleSize) {
+            accesses = 0;
+            for (byte[] counters : sketch) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+            }
+        }
+    }
+
+    private int frequency(String filename) {
+        int hash = spread(filename.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            frequency = Math.min(frequency, sketch[row][indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = hash * (0x9E3779B9 + 2 * row + 1);
+        return (h ^ h >>> 16) & sketchMask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        return hash ^ hash >>> 11;
+    }
+}
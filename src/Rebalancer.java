@@ -0,0 +1,659 @@
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Periodic rebalance for the Controller. Each round asks every Dstore for its file list, corrects
+ * the index to match what is really stored, then plans the fewest transfers that give every file
+ * {@code rep} replicas and keep each Dstore's file count within one of the average (moving files
+ * whose sizes also narrow the byte gap). Each Dstore gets one REBALANCE instruction; at most
+ * {@code parallelism} Dstores work on theirs at a time, and the index only changes once a Dstore
+ * reports REBALANCE_COMPLETE. A shard of an erasure coded file that no live Dstore holds is then
+ * rebuilt on a Dstore holding none of its siblings, which decodes it from k of them. Client requests
+ * keep being served throughout: the index lock is only held while reconciling, planning rebuilds and
+ * applying results.
+ */
+class Rebalancer {
+
+    private final Map<String, Controller.FileInfo> index;
+    private final Map<Integer, Controller.DstoreInfo> dStores;
+    private final ReentrantLock indexLock;
+    private final Consumer<Controller.FileInfo> logPut;
+    private final int rep;
+    private final int timeoutMillis;
+    private final int parallelism;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService instructionExecutor;
+    private final AtomicBoolean soonScheduled = new AtomicBoolean();
+    private final Map<Integer, CompletableFuture<Set<String>>> pendingLists = new ConcurrentHashMap<>();
+    private final Map<Integer, CompletableFuture<Void>> pendingCompletions = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Boolean>> pendingRebuilds = new ConcurrentHashMap<>();
+
+    /**
+     * The part of a plan carried out by one Dstore: files to copy to other Dstores, then files to
+     * delete. A file being moved appears in both.
+     */
+    static class DstoreTask {
+        final Map<String, List<Integer>> sends = new LinkedHashMap<>();
+        final Set<String> removes = new LinkedHashSet<>();
+
+        boolean isEmpty() {
+            return sends.isEmpty() && removes.isEmpty();
+        }
+
+        String toMessage() {
+            StringBuilder message = new StringBuilder("REBALANCE ").append(sends.size());
+            for (Map.Entry<String, List<Integer>> send : sends.entrySet()) {
+                message.append(' ').append(send.getKey()).append(' ').append(send.getValue().size());
+                for (int port : send.getValue()) {
+                    message.append(' ').append(port);
+                }
+            }
+            message.append(' ').append(removes.size());
+            for (String filename : removes) {
+                message.append(' ').append(filename);
+            }
+            return message.toString();
+        }
+    }
+
+    /**
+     * A missing shard of an erasure coded file, to be decoded on {@code target} from the first k of
+     * {@code survivors} (shard to the Dstore it is read from), data shards first.
+     */
+    static class Rebuild {
+        final Controller.FileInfo file;
+        final int shard;
+        final int target;
+        final SortedMap<Integer, Integer> survivors;
+
+        Rebuild(Controller.FileInfo file, int shard, int target, SortedMap<Integer, Integer> survivors) {
+            this.file = file;
+            this.shard = shard;
+            this.target = target;
+            this.survivors = survivors;
+        }
+
+        String shardName() {
+            return Controller.FileInfo.blockName(file.getFilename(), shard);
+        }
+
+        String toMessage() {
+            StringBuilder message = new StringBuilder("REBUILD ").append(shardName()).append(' ').append(file.getBlockSize())
+                    .append(' ').append(file.getDataShards()).append(' ').append(file.getParityShards()).append(' ').append(shard);
+            int sources = 0;
+            for (Map.Entry<Integer, Integer> survivor : survivors.entrySet()) {
+                if (sources++ == file.getDataShards()) {
+                    break;
+                }
+                message.append(' ').append(survivor.getKey())
+                        .append(' ').append(Controller.FileInfo.blockName(file.getFilename(), survivor.getKey()))
+                        .append(' ').append(survivor.getValue());
+            }
+            return message.toString();
+        }
+    }
+
+    Rebalancer(Map<String, Controller.FileInfo> index, Map<Integer, Controller.DstoreInfo> dStores, ReentrantLock indexLock,
+               Consumer<Controller.FileInfo> logPut, int rep, int timeoutMillis, int parallelism) {
+        this.index = index;
+        this.dStores = dStores;
+        this.indexLock = indexLock;
+        this.logPut = logPut;
+        this.rep = rep;
+        this.timeoutMillis = timeoutMillis;
+        this.parallelism = parallelism;
+        this.instructionExecutor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    void start(int periodSeconds) {
+        scheduler.scheduleWithFixedDelay(this::runSafely, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs an extra round shortly after a Dstore joins or crashes, giving a joining Dstore time to
+     * finish reporting its inventory.
+     */
+    void requestSoon() {
+        if (soonScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(() -> {
+                soonScheduled.set(false);
+                runSafely();
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void handleList(int port, String line) {
+        CompletableFuture<Set<String>> pending = pendingLists.remove(port);
+        if (pending != null) {
+            String[] parts = line.trim().split(" ");
+            pending.complete(new HashSet<>(Arrays.asList(parts).subList(1, parts.length)));
+        }
+    }
+
+    void handleComplete(int port) {
+        CompletableFuture<Void> pending = pendingCompletions.remove(port);
+        if (pending != null) {
+            pending.complete(null);
+        }
+    }
+
+    void handleRebuilt(String line) {
+        String[] parts = line.split(" ");
+        CompletableFuture<Boolean> pending = parts.length == 2 ? pendingRebuilds.remove(parts[1]) : null;
+        if (pending != null) {
+            pending.complete(parts[0].equals("REBUILD_COMPLETE"));
+        }
+    }
+
+    private void runSafely() {
+        try {
+            rebalance();
+        } catch (RuntimeException e) {
+            System.out.println("Rebalance failed: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    // Rounds never overlap: both the periodic and the requested runs go through the one scheduler thread
+    private void rebalance() {
+        if (dStores.size() < rep) {
+            return;
+        }
+        // Files completed after this point may be missing from the LIST answers without being lost
+        long listed = Controller.FileInfo.lastCompletion();
+        Map<Integer, Set<String>> holdings = collectLists();
+        if (holdings.isEmpty()) {
+            return;
+        }
+
+        Map<String, Long> sizes = new HashMap<>();
+        Map<String, Controller.FileInfo> planned = new HashMap<>();
+        Map<String, Controller.FileInfo> shardParents = new HashMap<>();
+        Map<Integer, DstoreTask> tasks = new HashMap<>();
+        for (int port : holdings.keySet()) {
+            tasks.put(port, new DstoreTask());
+        }
+
+        indexLock.lock();
+        try {
+            reconcile(holdings, listed, sizes, planned, shardParents, tasks);
+        } finally {
+            indexLock.unlock();
+        }
+
+        plan(holdings, sizes, shardParents, tasks);
+
+        List<Future<?>> running = new ArrayList<>();
+        int instructions = 0;
+        for (Map.Entry<Integer, DstoreTask> entry : tasks.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                instructions++;
+                running.add(instructionExecutor.submit(() -> execute(entry.getKey(), entry.getValue(), sizes, planned)));
+            }
+        }
+        for (Future<?> future : running) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                System.out.println("Rebalance instruction failed: " + e.getCause());
+            }
+        }
+        if (instructions > 0) {
+            System.out.println("Rebalance finished: " + instructions + " Dstores updated");
+        }
+
+        rebuildShards();
+    }
+
+    /**
+     * Rebuilds every shard of an erasure coded file that no live Dstore holds, each on a different
+     * Dstore that holds no other shard of the file. Degraded files are logged every round until they
+     * are whole again, and a file with fewer than k shards left as lost.
+     */
+    private void rebuildShards() {
+        List<Rebuild> rebuilds = new ArrayList<>();
+        indexLock.lock();
+        try {
+            Map<Integer, Integer> load = new HashMap<>();
+            for (Map.Entry<Integer, Controller.DstoreInfo> entry : dStores.entrySet()) {
+                load.put(entry.getKey(), entry.getValue().getFileCount());
+            }
+            for (Controller.FileInfo file : index.values()) {
+                if (file.getStatus() != Controller.FileStatus.STORE_COMPLETE || file.getParent() != null
+                        || file.getDataShards() == 0) {
+                    continue;
+                }
+                SortedMap<Integer, Integer> survivors = new TreeMap<>();
+                List<Integer> missing = new ArrayList<>();
+                Set<Integer> holders = new HashSet<>();
+                for (int shard = 0; shard < file.getBlockCount(); shard++) {
+                    Controller.FileInfo info = index.get(Controller.FileInfo.blockName(file.getFilename(), shard));
+                    List<Integer> ports = new ArrayList<>();
+                    if (info != null) {
+                        synchronized (info) {
+                            if (info.getDstores() != null) {
+                                ports.addAll(info.getDstores());
+                            }
+                        }
+                        ports.retainAll(load.keySet());
+                    }
+                    holders.addAll(ports);
+                    if (ports.isEmpty()) {
+                        missing.add(shard);
+                    } else {
+                        survivors.put(shard, ports.get(0));
+                    }
+                }
+                if (missing.isEmpty()) {
+                    continue;
+                } else if (survivors.size() < file.getDataShards()) {
+                    System.out.println("Erasure coded file " + file.getFilename() + " is lost: " + survivors.size()
+                            + " of the " + file.getDataShards() + " shards needed remain");
+                    continue;
+                }
+                System.out.println("Erasure coded file " + file.getFilename() + " is degraded: shards " + missing
+                        + " are missing, " + (survivors.size() - file.getDataShards()) + " more can be lost");
+
+                List<Integer> candidates = new ArrayList<>(load.keySet());
+                candidates.removeAll(holders);
+                candidates.sort(Comparator.comparingInt(load::get));
+                for (int i = 0; i < missing.size(); i++) {
+                    if (i == candidates.size()) {
+                        System.out.println("No Dstore free of shards of " + file.getFilename() + " to rebuild shards "
+                                + missing.subList(i, missing.size()) + " on");
+                        break;
+                    }
+                    int target = candidates.get(i);
+                    load.merge(target, 1, Integer::sum);
+                    rebuilds.add(new Rebuild(file, missing.get(i), target, survivors));
+                }
+            }
+        } finally {
+            indexLock.unlock();
+        }
+
+        List<Future<Boolean>> running = new ArrayList<>();
+        for (Rebuild rebuild : rebuilds) {
+            running.add(instructionExecutor.submit(() -> rebuild(rebuild)));
+        }
+        int rebuilt = 0;
+        for (Future<Boolean> future : running) {
+            try {
+                rebuilt += future.get() ? 1 : 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                System.out.println("Shard rebuild failed: " + e.getCause());
+            }
+        }
+        if (!rebuilds.isEmpty()) {
+            System.out.println("Rebuilt " + rebuilt + " of " + rebuilds.size() + " missing shards");
+        }
+    }
+
+    /**
+     * Sends one REBUILD and, once the Dstore reports REBUILD_COMPLETE, records the shard there,
+     * creating its index entry again if it was dropped along with the Dstores that held it.
+     */
+    private boolean rebuild(Rebuild rebuild) {
+        Controller.DstoreInfo dstore = dStores.get(rebuild.target);
+        if (dstore == null) {
+            return false;
+        }
+        String shardName = rebuild.shardName();
+        CompletableFuture<Boolean> completion = new CompletableFuture<>();
+        pendingRebuilds.put(shardName, completion);
+        dstore.getOut().println(rebuild.toMessage());
+
+        // Reading k shards and writing one moves about as much data as k + 1 rebalance transfers
+        long wait = (long) timeoutMillis * (2 + rebuild.file.getDataShards());
+        try {
+            if (!completion.get(wait, TimeUnit.MILLISECONDS)) {
+                System.out.println("Dstore " + rebuild.target + " could not rebuild " + shardName);
+                return false;
+            }
+        } catch (TimeoutException | ExecutionException e) {
+            System.out.println("Dstore " + rebuild.target + " did not rebuild " + shardName + " in time");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pendingRebuilds.remove(shardName);
+        }
+
+        indexLock.lock();
+        try {
+            Controller.FileInfo file = rebuild.file;
+            if (index.get(file.getFilename()) != file || file.getStatus() != Controller.FileStatus.STORE_COMPLETE) {
+                return false; // removed while it was being rebuilt; next round deletes the shard
+            }
+            Controller.FileInfo info = index.get(shardName);
+            if (info == null) {
+                info = new Controller.FileInfo(shardName, file.getBlockSize());
+                info.setParent(file.getFilename());
+                info.setStatus(Controller.FileStatus.STORE_COMPLETE);
+                info.setDstores(new ArrayList<>());
+                index.put(shardName, info);
+            }
+            synchronized (info) {
+                List<Integer> ports = new ArrayList<>(info.getDstores() == null ? List.of() : info.getDstores());
+                if (!ports.contains(rebuild.target)) {
+                    ports.add(rebuild.target);
+                    dstore.addFile(info.getFileSize());
+                }
+                info.setDstores(ports);
+                logPut.accept(info);
+            }
+        } finally {
+            indexLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Sends LIST to every joined Dstore and waits up to the timeout. Dstores that do not answer in
+     * time sit this round out.
+     */
+    private Map<Integer, Set<String>> collectLists() {
+        Map<Integer, CompletableFuture<Set<String>>> requests = new HashMap<>();
+        for (Map.Entry<Integer, Controller.DstoreInfo> entry : dStores.entrySet()) {
+            CompletableFuture<Set<String>> future = new CompletableFuture<>();
+            pendingLists.put(entry.getKey(), future);
+            requests.put(entry.getKey(), future);
+            entry.getValue().getOut().println("LIST");
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Map<Integer, Set<String>> holdings = new HashMap<>();
+        for (Map.Entry<Integer, CompletableFuture<Set<String>>> request : requests.entrySet()) {
+            try {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                holdings.put(request.getKey(), request.getValue().get(wait, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException | ExecutionException e) {
+                System.out.println("Dstore " + request.getKey() + " did not answer LIST, skipping it this round");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                pendingLists.remove(request.getKey());
+            }
+        }
+        return holdings;
+    }
+
+    /**
+     * Makes the replica lists of complete files agree with the LIST answers, records file sizes,
+     * the entry each plan is made for and the erasure coded file each shard belongs to, and
+     * schedules deletion of files the index does not know. Files completed after {@code listed}
+     * sit the round out, as the answers may predate them. Caller holds the index lock.
+     */
+    private void reconcile(Map<Integer, Set<String>> holdings, long listed, Map<String, Long> sizes,
+                           Map<String, Controller.FileInfo> planned, Map<String, Controller.FileInfo> shardParents,
+                           Map<Integer, DstoreTask> tasks) {
+        for (Controller.FileInfo info : index.values()) {
+            if (info.getStatus() != Controller.FileStatus.STORE_COMPLETE || info.getCompletion() > listed) {
+                continue;
+            }
+            String filename = info.getFilename();
+            sizes.put(filename, info.getFileSize());
+            planned.put(filename, info);
+            Controller.FileInfo parent = info.getParent() == null ? null : index.get(info.getParent());
+            if (parent != null && parent.getDataShards() > 0) {
+                shardParents.put(filename, parent);
+            }
+
+            synchronized (info) {
+                List<Integer> current = info.getDstores() == null ? List.of() : info.getDstores();
+                List<Integer> actual = new ArrayList<>();
+                for (int port : current) {
+                    // Keep what we cannot check: replicas on Dstores that did not answer
+                    if (!holdings.containsKey(port) || holdings.get(port).contains(filename)) {
+                        actual.add(port);
+                    }
+                }
+                for (Map.Entry<Integer, Set<String>> holding : holdings.entrySet()) {
+                    if (holding.getValue().contains(filename) && !actual.contains(holding.getKey())) {
+                        actual.add(holding.getKey());
+                    }
+                }
+                if (!actual.equals(current)) {
+                    for (int port : current) {
+                        Controller.DstoreInfo dstore = dStores.get(port);
+                        if (dstore != null && !actual.contains(port)) {
+                            dstore.removeFile(info.getFileSize());
+                        }
+                    }
+                    for (int port : actual) {
+                        Controller.DstoreInfo dstore = dStores.get(port);
+                        if (dstore != null && !current.contains(port)) {
+                            dstore.addFile(info.getFileSize());
+                        }
+                    }
+                    info.setDstores(actual);
+                    logPut.accept(info);
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Set<String>> holding : holdings.entrySet()) {
+            for (String filename : holding.getValue()) {
+                if (!index.containsKey(filename)) {
+                    tasks.get(holding.getKey()).removes.add(filename);
+                }
+            }
+            // Files still being stored or removed are not ours to move this round
+            holding.getValue().removeIf(filename -> !sizes.containsKey(filename));
+        }
+    }
+
+    /**
+     * Fills {@code tasks} with the transfers that restore the replication factor and even out
+     * file counts, working on a model of the Dstores that is updated as moves are planned. A shard
+     * of an erasure coded file keeps a single copy and never joins another shard of its file.
+     */
+    private void plan(Map<Integer, Set<String>> holdings, Map<String, Long> sizes,
+                      Map<String, Controller.FileInfo> shardParents, Map<Integer, DstoreTask> tasks) {
+        Map<Integer, Set<String>> model = new HashMap<>();
+        Map<Integer, Long> bytes = new HashMap<>();
+        Map<Integer, Integer> outgoing = new HashMap<>();
+        for (Map.Entry<Integer, Set<String>> holding : holdings.entrySet()) {
+            model.put(holding.getKey(), new HashSet<>(holding.getValue()));
+            long total = 0;
+            for (String filename : holding.getValue()) {
+                total += sizes.get(filename);
+            }
+            bytes.put(holding.getKey(), total);
+            outgoing.put(holding.getKey(), 0);
+        }
+        Comparator<Integer> leastLoaded = Comparator.<Integer>comparingInt(port -> model.get(port).size())
+                .thenComparingLong(bytes::get);
+
+        // 1. Replication: copy under-replicated files to the least loaded Dstores that lack them,
+        //    and trim extra copies from the most loaded holders
+        for (Map.Entry<String, Long> file : sizes.entrySet()) {
+            String filename = file.getKey();
+            List<Integer> holders = new ArrayList<>();
+            for (Map.Entry<Integer, Set<String>> entry : model.entrySet()) {
+                if (entry.getValue().contains(filename)) {
+                    holders.add(entry.getKey());
+                }
+            }
+            if (holders.isEmpty()) {
+                continue; // every known copy is gone; nothing to copy from
+            }
+
+            int replicas = shardParents.containsKey(filename) ? 1 : rep;
+            if (holders.size() < replicas) {
+                List<Integer> candidates = new ArrayList<>(model.keySet());
+                candidates.removeAll(holders);
+                candidates.removeIf(port -> holdsSibling(model.get(port), filename, shardParents));
+                candidates.sort(leastLoaded);
+                for (int target : candidates.subList(0, Math.min(replicas - holders.size(), candidates.size()))) {
+                    int source = Collections.min(holders, Comparator.comparingInt(outgoing::get));
+                    addSend(tasks, source, filename, target);
+                    outgoing.merge(source, 1, Integer::sum);
+                    model.get(target).add(filename);
+                    bytes.merge(target, file.getValue(), Long::sum);
+                }
+            } else if (holders.size() > replicas) {
+                holders.sort(leastLoaded.reversed());
+                for (int port : holders.subList(0, holders.size() - replicas)) {
+                    tasks.get(port).removes.add(filename);
+                    model.get(port).remove(filename);
+                    bytes.merge(port, -file.getValue(), Long::sum);
+                }
+            }
+        }
+
+        // 2. Balance: move files from the fullest Dstore to the emptiest until every count is
+        //    within [floor, ceil] of the average. Only files physically present can be moved.
+        int totalFiles = 0;
+        for (Set<String> files : model.values()) {
+            totalFiles += files.size();
+        }
+        int low = totalFiles / model.size();
+        int high = (totalFiles + model.size() - 1) / model.size();
+
+        for (int step = 0; step < totalFiles; step++) {
+            int source = Collections.max(model.keySet(), leastLoaded);
+            int target = Collections.min(model.keySet(), leastLoaded);
+            if (model.get(source).size() <= high && model.get(target).size() >= low) {
+                break;
+            }
+
+            // Prefer the file whose size best halves the byte gap between the two
+            long idealSize = Math.max(0, (bytes.get(source) - bytes.get(target)) / 2);
+            String best = null;
+            for (String filename : holdings.get(source)) {
+                if (!model.get(source).contains(filename) || model.get(target).contains(filename)
+                        || holdsSibling(model.get(target), filename, shardParents)) {
+                    continue;
+                }
+                if (best == null || Math.abs(sizes.get(filename) - idealSize) < Math.abs(sizes.get(best) - idealSize)) {
+                    best = filename;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+
+            addSend(tasks, source, best, target);
+            tasks.get(source).removes.add(best);
+            model.get(source).remove(best);
+            model.get(target).add(best);
+            bytes.merge(source, -sizes.get(best), Long::sum);
+            bytes.merge(target, sizes.get(best), Long::sum);
+        }
+    }
+
+    // Whether a Dstore already holds another shard of the erasure coded file that filename is a shard of
+    private static boolean holdsSibling(Set<String> files, String filename, Map<String, Controller.FileInfo> shardParents) {
+        Controller.FileInfo parent = shardParents.get(filename);
+        if (parent == null) {
+            return false;
+        }
+        for (int shard = 0; shard < parent.getBlockCount(); shard++) {
+            String sibling = Controller.FileInfo.blockName(parent.getFilename(), shard);
+            if (!sibling.equals(filename) && files.contains(sibling)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addSend(Map<Integer, DstoreTask> tasks, int source, String filename, int target) {
+        tasks.get(source).sends.computeIfAbsent(filename, k -> new ArrayList<>()).add(target);
+    }
+
+    /**
+     * Sends one Dstore its instruction and, once it reports REBALANCE_COMPLETE, applies the result
+     * to the index. Files removed or stored again since the plan was made are left out, both of
+     * the instruction and of the result. A Dstore that times out leaves the index untouched; the
+     * next round's LIST reconciliation picks up whatever it did manage to do.
+     */
+    private void execute(int port, DstoreTask task, Map<String, Long> sizes, Map<String, Controller.FileInfo> planned) {
+        Controller.DstoreInfo dstore = dStores.get(port);
+        if (dstore == null) {
+            return;
+        }
+        String message;
+        indexLock.lock();
+        try {
+            // Files the index does not know were planned as null, and must still be unknown
+            task.sends.keySet().removeIf(filename -> index.get(filename) != planned.get(filename));
+            task.removes.removeIf(filename -> index.get(filename) != planned.get(filename));
+            message = task.toMessage();
+        } finally {
+            indexLock.unlock();
+        }
+        if (task.isEmpty()) {
+            return;
+        }
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        pendingCompletions.put(port, completion);
+        PrintWriter out = dstore.getOut();
+        out.println(message);
+
+        // Moving data takes longer than a control round trip: allow the timeout per file involved
+        long wait = (long) timeoutMillis * (1 + task.sends.size() + task.removes.size());
+        try {
+            completion.get(wait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            System.out.println("Dstore " + port + " did not complete its rebalance in time");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            pendingCompletions.remove(port);
+        }
+
+        indexLock.lock();
+        try {
+            for (Map.Entry<String, List<Integer>> send : task.sends.entrySet()) {
+                Controller.FileInfo info = index.get(send.getKey());
+                if (info == null || info != planned.get(send.getKey()) || info.getStatus() != Controller.FileStatus.STORE_COMPLETE) {
+                    continue; // removed, or stored again, while it was being copied; next round deletes the copies
+                }
+                synchronized (info) {
+                    List<Integer> ports = new ArrayList<>(info.getDstores());
+                    for (int target : send.getValue()) {
+                        Controller.DstoreInfo targetInfo = dStores.get(target);
+                        if (!ports.contains(target) && targetInfo != null) {
+                            ports.add(target);
+                            targetInfo.addFile(sizes.get(send.getKey()));
+                        }
+                    }
+                    info.setDstores(ports);
+                    logPut.accept(info);
+                }
+            }
+            for (String filename : task.removes) {
+                Controller.FileInfo info = index.get(filename);
+                if (info == null || info != planned.get(filename)) {
+                    continue;
+                }
+                synchronized (info) {
+                    List<Integer> ports = new ArrayList<>(info.getDstores());
+                    if (ports.remove((Integer) port)) {
+                        dstore.removeFile(info.getFileSize());
+                        info.setDstores(ports);
+                        logPut.accept(info);
+                    }
+                }
+            }
+        } finally {
+            indexLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8): {@code dataShards} shards of data plus
+ * {@code parityShards} of parity, any {@code dataShards} of which rebuild the rest. The coding
+ * matrix is a Vandermonde matrix turned systematic by multiplying with the inverse of its top
+ * square, so data shards are stored as they are and every square submatrix stays invertible.
+ */
+class ReedSolomon {
+
+    // Multiplication table for GF(2^8) with the polynomial x^8 + x^4 + x^3 + x^2 + 1
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int[] exp = new int[510];
+        int[] log = new int[256];
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            exp[i] = x;
+            exp[i + 255] = x;
+            log[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= 0x11D;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) exp[log[a] + log[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix;
+
+    ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException("Unsupported code: " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        int total = dataShards + parityShards;
+        byte[][] vandermonde = new byte[total][dataShards];
+        for (int row = 0; row < total; row++) {
+            int value = 1;
+            for (int column = 0; column < dataShards; column++) {
+                vandermonde[row][column] = (byte) value;
+                value = MUL[value][row] & 0xff;
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    /**
+     * Computes the parity shards, {@code shards[dataShards..]}, from the first {@code length}
+     * bytes of the data shards.
+     */
+    void encode(byte[][] shards, int length) {
+        for (int parity = 0; parity < parityShards; parity++) {
+            byte[] out = shards[dataShards + parity];
+            Arrays.fill(out, 0, length, (byte) 0);
+            for (int data = 0; data < dataShards; data++) {
+                addMultiple(out, shards[data], matrix[dataShards + parity][data], length);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the missing (null) data shards from any {@code dataShards} of the others, each
+     * {@code length} bytes long. Parity shards that are missing stay missing.
+     */
+    void reconstruct(byte[][] shards, int length) {
+        int[] present = new int[dataShards];
+        int count = 0;
+        for (int i = 0; i < shards.length && count < dataShards; i++) {
+            if (shards[i] != null) {
+                present[count++] = i;
+            }
+        }
+        if (count < dataShards) {
+            throw new IllegalArgumentException("Only " + count + " of the " + dataShards + " shards needed are present");
+        }
+
+        byte[][] rows = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            rows[i] = matrix[present[i]];
+        }
+        byte[][] decode = invert(rows);
+        for (int data = 0; data < dataShards; data++) {
+            if (shards[data] != null) {
+                continue;
+            }
+            byte[] out = new byte[length];
+            for (int i = 0; i < dataShards; i++) {
+                addMultiple(out, shards[present[i]], decode[data][i], length);
+            }
+            shards[data] = out;
+        }
+    }
+
+    private static void addMultiple(byte[] out, byte[] in, byte coefficient, int length) {
+        if (coefficient == 0) {
+            return;
+        }
+        byte[] row = MUL[coefficient & 0xff];
+        if (coefficient == 1) {
+            for (int i = 0; i < length; i++) {
+                out[i] ^= in[i];
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                out[i] ^= row[in[i] & 0xff];
+            }
+        }
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] result = new byte[a.length][b[0].length];
+        for (int row = 0; row < a.length; row++) {
+            for (int column = 0; column < b[0].length; column++) {
+                int value = 0;
+                for (int i = 0; i < b.length; i++) {
+                    value ^= MUL[a[row][i] & 0xff][b[i][column] & 0xff];
+                }
+                result[row][column] = (byte) value;
+            }
+        }
+        return result;
+    }
+
+    // Gauss-Jordan elimination; in GF(2^8) subtraction is XOR
+    private static byte[][] invert(byte[][] square) {
+        int n = square.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int row = 0; row < n; row++) {
+            System.arraycopy(square[row], 0, work[row], 0, n);
+            work[row][n + row] = 1;
+        }
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while (pivot < n && work[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("Matrix is singular");
+            }
+            byte[] swap = work[pivot];
+            work[pivot] = work[column];
+            work[column] = swap;
+
+            byte[] scale = MUL[inverse(work[column][column] & 0xff)];
+            for (int i = 0; i < 2 * n; i++) {
+                work[column][i] = scale[work[column][i] & 0xff];
+            }
+            for (int row = 0; row < n; row++) {
+                if (row != column && work[row][column] != 0) {
+                    byte[] factor = MUL[work[row][column] & 0xff];
+                    for (int i = 0; i < 2 * n; i++) {
+                        work[row][i] ^= factor[work[column][i] & 0xff];
+                    }
+                }
+            }
+        }
+        byte[][] result = new byte[n][n];
+        for (int row = 0; row < n; row++) {
+            System.arraycopy(work[row], n, result[row], 0, n);
+        }
+        return result;
+    }
+
+    private static int inverse(int a) {
+        for (int b = 1; b < 256; b++) {
+            if (MUL[a][b] == 1) {
+                return b;
+            }
+        }
+        throw new ArithmeticException("0 has no inverse");
+    }
+}
@@ -0,0 +1,171 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks which replica a LOAD, RELOAD or MLOAD sends a client to. Every policy sees the same picture
+ * of each Dstore's load: the transfers it last reported in progress ({@code LOAD_REPORT}), plus the
+ * clients sent to it since that report, which have probably not shown up in it yet, and an EWMA of
+ * how long a load from it takes. That EWMA comes from the load times clients send back with their
+ * requests when they have any, since only they see the time a request waits before the Dstore gets
+ * to it, and otherwise from the Dstore's own report. A client that comes back with RELOAD after
+ * being sent somewhere doubles that Dstore's latency until fresh figures replace it.
+ */
+abstract class ReplicaSelector {
+
+    // Latencies are capped at a minute, so that doubling one on every RELOAD can never overflow
+    private static final long MAX_LATENCY_MICROS = 60_000_000L;
+
+    /**
+     * {@code random} (the default) ignores load; {@code p2c} compares two replicas picked at
+     * random and takes the one with less expected wait; {@code least} takes the replica with the
+     * fewest outstanding transfers.
+     */
+    static ReplicaSelector create(String name) {
+        switch (name) {
+            case "random":
+                return new RandomChoice();
+            case "p2c":
+                return new PowerOfTwoChoices();
+            case "least":
+                return new LeastOutstanding();
+            default:
+                throw new IllegalArgumentException("Unknown replica selector: " + name);
+        }
+    }
+
+    static class Load {
+        private int reportedActive;
+        private long reportedLatencyMicros;
+        private long observedLatencyMicros;
+        // Clients sent here since the last LOAD_REPORT, which is probably not counting them yet
+        private int sentSinceReport;
+        // Clients sent here that have not sent their load time back or come back with RELOAD
+        private int unanswered;
+
+        // Once clients send their load times back, each one sent here counts until it does. Until
+        // then one counts until the next report, which includes it if it is still transferring
+        synchronized int outstanding() {
+            return observedLatencyMicros > 0 ? Math.max(reportedActive, unanswered) : reportedActive + sentSinceReport;
+        }
+
+        // Expected time to serve one more client: the queue ahead of it times how long each takes.
+        // Until there are any figures every Dstore counts as taking a millisecond
+        synchronized double cost() {
+            long latency = observedLatencyMicros > 0 ? observedLatencyMicros : reportedLatencyMicros > 0 ? reportedLatencyMicros : 1000;
+            return (double) (outstanding() + 1) * latency;
+        }
+    }
+
+    private final Map<Integer, Load> loads = new ConcurrentHashMap<>();
+
+    /**
+     * Returns one of {@code ports}, which is never empty, and counts a client as sent there.
+     */
+    int choose(List<Integer> ports) {
+        int port = ports.size() == 1 ? ports.get(0) : pick(ports);
+        Load load = load(port);
+        synchronized (load) {
+            load.sentSinceReport++;
+            load.unanswered++;
+        }
+        return port;
+    }
+
+    abstract int pick(List<Integer> ports);
+
+    // LOAD_REPORT <active> <latency micros> from the Dstore on port
+    void reported(int port, int active, long latencyMicros) {
+        Load load = load(port);
+        synchronized (load) {
+            load.reportedActive = active;
+            load.reportedLatencyMicros = Math.min(latencyMicros, MAX_LATENCY_MICROS);
+            // Anyone still unanswered is either transferring now or was sent since the last report;
+            // the rest were clients that never send load times back, or never turned up
+            load.unanswered = Math.min(load.unanswered, active + load.sentSinceReport);
+            load.sentSinceReport = 0;
+        }
+    }
+
+    // How long a client took to load a file from port, start to finish; that client is no longer outstanding
+    void observed(int port, long latencyMicros) {
+        Load load = load(port);
+        synchronized (load) {
+            load.unanswered = Math.max(0, load.unanswered - 1);
+            long current = load.observedLatencyMicros;
+            long latency = Math.min(latencyMicros, MAX_LATENCY_MICROS);
+            load.observedLatencyMicros = Math.max(1, current == 0 ? latency : (current * 4 + latency) / 5);
+        }
+    }
+
+    // A client sent to port asked for another replica instead
+    void failed(int port) {
+        Load load = load(port);
+        synchronized (load) {
+            load.unanswered = Math.max(0, load.unanswered - 1);
+            if (load.observedLatencyMicros > 0) {
+                load.observedLatencyMicros = Math.min(load.observedLatencyMicros * 2, MAX_LATENCY_MICROS);
+            } else {
+                load.reportedLatencyMicros = Math.min(Math.max(1000, load.reportedLatencyMicros * 2), MAX_LATENCY_MICROS);
+            }
+        }
+    }
+
+    void removed(int port) {
+        loads.remove(port);
+    }
+
+    Load load(int port) {
+        return loads.computeIfAbsent(port, k -> new Load());
+    }
+
+    static class RandomChoice extends ReplicaSelector {
+        @Override
+        int pick(List<Integer> ports) {
+            return ports.get(ThreadLocalRandom.current().nextInt(ports.size()));
+        }
+    }
+
+    /**
+     * Two distinct replicas at random, the cheaper one wins. Never piles every client onto the one
+     * Dstore that looked best at the last report, which is what always taking the cheapest would do.
+     */
+    static class PowerOfTwoChoices extends ReplicaSelector {
+        @Override
+        int pick(List<Integer> ports) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(ports.size());
+            int second = random.nextInt(ports.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            int a = ports.get(first);
+            int b = ports.get(second);
+            return load(a).cost() <= load(b).cost() ? a : b;
+        }
+    }
+
+    static class LeastOutstanding extends ReplicaSelector {
+        @Override
+        int pick(List<Integer> ports) {
+            int best = -1;
+            int bestOutstanding = Integer.MAX_VALUE;
+            double bestCost = Double.MAX_VALUE;
+            // Start at a random replica so ties do not always go to the same one
+            int start = ThreadLocalRandom.current().nextInt(ports.size());
+            for (int i = 0; i < ports.size(); i++) {
+                int port = ports.get((start + i) % ports.size());
+                Load load = load(port);
+                int outstanding = load.outstanding();
+                double cost = load.cost();
+                if (outstanding < bestOutstanding || outstanding == bestOutstanding && cost < bestCost) {
+                    best = port;
+                    bestOutstanding = outstanding;
+                    bestCost = cost;
+                }
+            }
+            return best;
+        }
+    }
+}
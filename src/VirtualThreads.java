@@ -0,0 +1,48 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Optional virtual thread support for the Controller and Dstore. The JDK methods are looked up
+ * reflectively so the project still compiles and runs on JDKs without virtual threads; there,
+ * asking for virtual threads falls back to a cached pool of platform threads.
+ */
+final class VirtualThreads {
+
+    private static final Method NEW_VIRTUAL_EXECUTOR = lookup();
+
+    private VirtualThreads() {
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    static boolean isAvailable() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Returns a one-thread-per-task executor: virtual threads when {@code virtual} is set and the
+     * JDK supports them, otherwise a cached platform thread pool.
+     */
+    static ExecutorService newExecutor(boolean virtual, String owner) {
+        if (virtual) {
+            if (isAvailable()) {
+                try {
+                    System.out.println(owner + " running connection handlers on virtual threads");
+                    return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    System.out.println("Could not create virtual thread executor: " + e);
+                }
+            } else {
+                System.out.println("Virtual threads need JDK 21 or newer, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}